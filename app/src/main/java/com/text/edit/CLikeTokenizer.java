@@ -0,0 +1,205 @@
+package com.text.edit;
+
+import java.util.Locale;
+
+/**
+ * A Tokenizer for the languages with a C-like syntax: keywords, "" and ''
+ * strings with backslash escapes, numbers, // and block comments, and
+ * capitalized identifiers taken as types.
+ *
+ * Only block comments span lines, a string left open ends with its line.
+ * Keywords are looked up in place in the line, without a String per word.
+ */
+public class CLikeTokenizer implements Tokenizer {
+
+    private static final int IN_COMMENT = 1;
+
+    private static final String[] JAVA_KEYWORDS = {
+        "abstract", "assert", "boolean", "break", "byte", "case", "catch",
+        "char", "class", "const", "continue", "default", "do", "double",
+        "else", "enum", "extends", "false", "final", "finally", "float",
+        "for", "goto", "if", "implements", "import", "instanceof", "int",
+        "interface", "long", "native", "new", "null", "package", "private",
+        "protected", "public", "return", "short", "static", "strictfp",
+        "super", "switch", "synchronized", "this", "throw", "throws",
+        "transient", "true", "try", "var", "void", "volatile", "while"
+    };
+
+    private static final String[] C_KEYWORDS = {
+        "auto", "bool", "break", "case", "catch", "char", "class", "const",
+        "constexpr", "continue", "default", "define", "delete", "do",
+        "double", "else", "endif", "enum", "extern", "false", "float", "for",
+        "goto", "if", "ifdef", "ifndef", "include", "inline", "int", "long",
+        "namespace", "new", "nullptr", "operator", "private", "protected",
+        "public", "register", "return", "short", "signed", "sizeof",
+        "static", "struct", "switch", "template", "this", "throw", "true",
+        "try", "typedef", "typename", "union", "unsigned", "using",
+        "virtual", "void", "volatile", "while"
+    };
+
+    private static final String[] JS_KEYWORDS = {
+        "async", "await", "break", "case", "catch", "class", "const",
+        "continue", "debugger", "default", "delete", "do", "else", "export",
+        "extends", "false", "finally", "for", "from", "function", "if",
+        "import", "in", "instanceof", "interface", "let", "new", "null",
+        "of", "return", "static", "super", "switch", "this", "throw",
+        "true", "try", "type", "typeof", "undefined", "var", "void",
+        "while", "with", "yield"
+    };
+
+    // keywords by their first char
+    private final char[][][] _keywords = new char[128][][];
+
+    public CLikeTokenizer(String... keywords) {
+        // counted first, so every char gets an array of its exact size
+        int[] counts = new int[_keywords.length];
+        for (String keyword : keywords) {
+            ++counts[keyword.charAt(0)];
+        }
+        for (String keyword : keywords) {
+            char first = keyword.charAt(0);
+            if (_keywords[first] == null) {
+                _keywords[first] = new char[counts[first]][];
+            }
+            _keywords[first][--counts[first]] = keyword.toCharArray();
+        }
+    }
+
+    /**
+     * @return A tokenizer for the language of the file, by its extension,
+     *          or null if there is none
+     */
+    public static Tokenizer forFileName(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+
+        switch (name.substring(dot + 1).toLowerCase(Locale.ROOT)) {
+            case "java":
+            case "kt":
+            case "groovy":
+                return new CLikeTokenizer(JAVA_KEYWORDS);
+            case "c":
+            case "h":
+            case "cc":
+            case "cpp":
+            case "cxx":
+            case "hpp":
+                return new CLikeTokenizer(C_KEYWORDS);
+            case "js":
+            case "mjs":
+            case "ts":
+            case "json":
+                return new CLikeTokenizer(JS_KEYWORDS);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public int tokenize(char[] chars, int start, int end, int state, IntList spans) {
+        int i = start;
+        if (state == IN_COMMENT) {
+            add(spans, 0, COMMENT);
+            i = commentEnd(chars, start, end);
+            if (i < 0) {
+                return IN_COMMENT;
+            }
+        }
+
+        while (i < end) {
+            char c = chars[i];
+            char next = i + 1 < end ? chars[i + 1] : 0;
+            if (c == '/' && next == '/') {
+                add(spans, i - start, COMMENT);
+                return INITIAL_STATE;
+            } else if (c == '/' && next == '*') {
+                add(spans, i - start, COMMENT);
+                i = commentEnd(chars, i + 2, end);
+                if (i < 0) {
+                    return IN_COMMENT;
+                }
+            } else if (c == '"' || c == '\'') {
+                add(spans, i - start, STRING);
+                i = stringEnd(chars, i + 1, end, c);
+            } else if (c >= '0' && c <= '9') {
+                add(spans, i - start, NUMBER);
+                // also takes in hex digits, suffixes and exponents
+                while (++i < end && (Character.isLetterOrDigit(chars[i]) || chars[i] == '.'
+                                     || chars[i] == '_')) {
+                }
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int wordStart = i;
+                while (++i < end && Character.isJavaIdentifierPart(chars[i])) {
+                }
+                int type = NORMAL;
+                if (isKeyword(chars, wordStart, i)) {
+                    type = KEYWORD;
+                } else if (Character.isUpperCase(c)) {
+                    type = TYPE;
+                }
+                add(spans, wordStart - start, type);
+            } else {
+                add(spans, i - start, NORMAL);
+                ++i;
+            }
+        }
+        return INITIAL_STATE;
+    }
+
+    /**
+     * @return The offset after the end of the comment, or -1 if it goes
+     *          on past the line
+     */
+    private static int commentEnd(char[] chars, int from, int end) {
+        for (int i = from; i + 1 < end; ++i) {
+            if (chars[i] == '*' && chars[i + 1] == '/') {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    private static int stringEnd(char[] chars, int from, int end, char quote) {
+        for (int i = from; i < end; ++i) {
+            if (chars[i] == '\\') {
+                ++i;
+            } else if (chars[i] == quote) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private boolean isKeyword(char[] chars, int start, int end) {
+        char first = chars[start];
+        if (first >= _keywords.length || _keywords[first] == null) {
+            return false;
+        }
+
+        next:
+        for (char[] keyword : _keywords[first]) {
+            if (keyword.length != end - start) {
+                continue;
+            }
+            for (int i = 1; i < keyword.length; ++i) {
+                if (keyword[i] != chars[start + i]) {
+                    continue next;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // adds a token, unless it goes on the one before
+    private static void add(IntList spans, int offset, int type) {
+        int size = spans.size();
+        if (size > 0 && spans.get(size - 1) == type) {
+            return;
+        }
+        spans.add(offset);
+        spans.add(type);
+    }
+}
@@ -0,0 +1,117 @@
+package com.text.edit;
+
+/**
+ * The ranges of a text edited since the last clear(), kept in step with
+ * the edits that follow, so a search can re-scan only those.
+ *
+ * A deletion leaves an empty range where the text was joined. The ranges
+ * are sorted and merged when they touch. At most MAX_RANGES are kept, the
+ * two closest ones are merged beyond that, so an edit costs O(MAX_RANGES).
+ */
+public class DirtyRanges implements OnEditListener {
+
+    private static final int MAX_RANGES = 32;
+
+    private final int[] _starts = new int[MAX_RANGES + 1];
+    private final int[] _ends = new int[MAX_RANGES + 1];
+    private int _count;
+
+    public int size() {
+        return _count;
+    }
+
+    public boolean isEmpty() {
+        return _count == 0;
+    }
+
+    public int getStart(int index) {
+        return _starts[index];
+    }
+
+    public int getEnd(int index) {
+        return _ends[index];
+    }
+
+    /**
+     * @return The chars covered by all the ranges
+     */
+    public long getLength() {
+        long length = 0;
+        for (int i = 0; i < _count; ++i) {
+            length += _ends[i] - _starts[i];
+        }
+        return length;
+    }
+
+    public void clear() {
+        _count = 0;
+    }
+
+    @Override
+    public void onInsert(int offset, char[] chars, int start, int count) {
+        for (int i = 0; i < _count; ++i) {
+            if (_starts[i] >= offset) {
+                _starts[i] += count;
+            }
+            if (_ends[i] >= offset) {
+                _ends[i] += count;
+            }
+        }
+        add(offset, offset + count);
+    }
+
+    @Override
+    public void onDelete(int start, int end) {
+        for (int i = 0; i < _count; ++i) {
+            _starts[i] = map(_starts[i], start, end);
+            _ends[i] = map(_ends[i], start, end);
+        }
+        add(start, start);
+    }
+
+    private static int map(int offset, int start, int end) {
+        if (offset <= start) {
+            return offset;
+        }
+        return offset >= end ? offset - (end - start) : start;
+    }
+
+    private void add(int start, int end) {
+        int index = 0;
+        while (index < _count && _starts[index] < start) {
+            ++index;
+        }
+        System.arraycopy(_starts, index, _starts, index + 1, _count - index);
+        System.arraycopy(_ends, index, _ends, index + 1, _count - index);
+        _starts[index] = start;
+        _ends[index] = end;
+        _count++;
+
+        // merge the ranges that touch
+        int merged = 0;
+        for (int i = 1; i < _count; ++i) {
+            if (_starts[i] <= _ends[merged]) {
+                _ends[merged] = Math.max(_ends[merged], _ends[i]);
+            } else {
+                ++merged;
+                _starts[merged] = _starts[i];
+                _ends[merged] = _ends[i];
+            }
+        }
+        _count = merged + 1;
+
+        if (_count > MAX_RANGES) {
+            // join the two ranges closest to each other
+            int closest = 0;
+            for (int i = 1; i < _count - 1; ++i) {
+                if (_starts[i + 1] - _ends[i] < _starts[closest + 1] - _ends[closest]) {
+                    closest = i;
+                }
+            }
+            _ends[closest] = _ends[closest + 1];
+            System.arraycopy(_starts, closest + 2, _starts, closest + 1, _count - closest - 2);
+            System.arraycopy(_ends, closest + 2, _ends, closest + 1, _count - closest - 2);
+            _count--;
+        }
+    }
+}
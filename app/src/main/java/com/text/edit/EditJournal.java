@@ -0,0 +1,272 @@
+package com.text.edit;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A write-ahead journal of the edits made to a GapBuffer since its file
+ * was last saved, so that unsaved edits survive the process being killed.
+ *
+ * The journal is an append-only memory mapped file. Writes to the mapping
+ * survive a process kill as they are, so an edit only costs a copy of the
+ * edited text into the mapping. To also survive losing power the mapping
+ * is forced to the storage device once FORCE_BYTES were appended and by
+ * flush(), on a thread of its own, as a force blocks until the device is
+ * done and the edits are journaled on the UI thread, within the lock of
+ * the GapBuffer.
+ *
+ * The header names the size and modification time of the saved file the
+ * edits apply to. A record is written before its size field, so a record
+ * cut short by a kill has a size of 0 and ends the replay. checkpoint()
+ * empties the journal after the file was saved. It is not checkpointed
+ * otherwise: compacting it would mean writing the whole text to another
+ * file, which is what saving does, and replaying it costs about a
+ * microsecond an edit.
+ *
+ * Layout, big endian:
+ *   header: int MAGIC, int FORMAT, long file size, long file modified time
+ *   record: int size, byte type, int offset, int length, [char... inserted]
+ */
+public class EditJournal implements OnEditListener {
+
+    private static final int MAGIC = 0x4A524E4C; // "JRNL"
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final byte INSERT = 1;
+    private static final byte DELETE = 2;
+    // type, offset and length
+    private static final int RECORD_HEADER = 9;
+
+    private static final int INITIAL_SIZE = 256 * 1024;
+    // appended bytes between two forced writes
+    private static final int FORCE_BYTES = 64 * 1024;
+
+    private final Path _journalPath;
+    private final Path _filePath;
+    private FileChannel _channel;
+    private MappedByteBuffer _buffer;
+    // where the next record goes
+    private int _position = HEADER_SIZE;
+    // where the last force was requested up to
+    private int _forcedPosition = HEADER_SIZE;
+
+    // forces the mapping, in the order requested
+    private final ExecutorService _forcer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EditJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // a force is requested but not started yet, it covers later records too
+    private final AtomicBoolean _forceQueued = new AtomicBoolean();
+
+    /**
+     * @param journalPath The journal file, created if it does not exist
+     * @param filePath The file the edits are made to
+     */
+    public EditJournal(Path journalPath, Path filePath) throws IOException {
+        _journalPath = journalPath;
+        _filePath = filePath;
+        _channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(Math.max(INITIAL_SIZE, _channel.size()));
+    }
+
+    /**
+     * Applies the journaled edits to buffer, which must hold the text of
+     * the saved file. A journal written for another version of the file
+     * is discarded instead.
+     *
+     * @return The number of edits applied
+     */
+    public int replay(GapBuffer buffer) throws IOException {
+        _buffer.position(0);
+        if (_buffer.getInt() != MAGIC || _buffer.getInt() != FORMAT
+            || _buffer.getLong() != fileSize() || _buffer.getLong() != fileModified()) {
+            checkpoint();
+            return 0;
+        }
+
+        int count = 0;
+        int position = HEADER_SIZE;
+        char[] chars = new char[256];
+        while (position + 4 + RECORD_HEADER <= _buffer.capacity()) {
+            int size = _buffer.getInt(position);
+            if (size < RECORD_HEADER || position + 4 + size > _buffer.capacity()) {
+                break;
+            }
+
+            _buffer.position(position + 4);
+            byte type = _buffer.get();
+            int offset = _buffer.getInt();
+            int length = _buffer.getInt();
+            if (offset < 0 || length < 0 || offset > buffer.length()) {
+                break;
+            }
+
+            if (type == INSERT) {
+                if (length > chars.length) {
+                    chars = new char[length];
+                }
+                _buffer.asCharBuffer().get(chars, 0, length);
+                buffer.insert(offset, chars, 0, length, false);
+            } else if (type == DELETE && offset + length <= buffer.length()) {
+                buffer.delete(offset, offset + length, false);
+            } else {
+                break;
+            }
+            position += 4 + size;
+            ++count;
+        }
+
+        // a torn record at the end is overwritten by the next edit
+        _position = _forcedPosition = position;
+        return count;
+    }
+
+    @Override
+    public void onInsert(int offset, char[] chars, int start, int count) {
+        int size = RECORD_HEADER + count * 2;
+        if (!reserve(size)) {
+            return;
+        }
+
+        _buffer.position(_position + 4);
+        _buffer.put(INSERT);
+        _buffer.putInt(offset);
+        _buffer.putInt(count);
+        _buffer.asCharBuffer().put(chars, start, count);
+        commit(size);
+    }
+
+    @Override
+    public void onDelete(int start, int end) {
+        if (!reserve(RECORD_HEADER)) {
+            return;
+        }
+
+        _buffer.position(_position + 4);
+        _buffer.put(DELETE);
+        _buffer.putInt(start);
+        _buffer.putInt(end - start);
+        commit(RECORD_HEADER);
+    }
+
+    /**
+     * Makes room for a record of size bytes after _position
+     */
+    private boolean reserve(int size) {
+        long needed = (long) _position + 4 + size + 4;
+        if (needed <= _buffer.capacity()) {
+            return true;
+        }
+
+        try {
+            long capacity = _buffer.capacity();
+            while (capacity < needed) {
+                capacity *= 2;
+            }
+            if (capacity > Integer.MAX_VALUE) {
+                return false;
+            }
+            map(capacity);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void commit(int size) {
+        // the size goes last, a record without it is ignored by replay()
+        _buffer.putInt(_position, size);
+        _position += 4 + size;
+        // the next record must end the replay until it is complete
+        _buffer.putInt(_position, 0);
+
+        if (_position - _forcedPosition >= FORCE_BYTES) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the journal to the storage device in the background, without
+     * waiting for it
+     */
+    public void flush() {
+        if (_forcedPosition != _position) {
+            _forcedPosition = _position;
+            force();
+        }
+    }
+
+    private void force() {
+        if (_forceQueued.compareAndSet(false, true)) {
+            final MappedByteBuffer buffer = _buffer;
+            _forcer.execute(() -> {
+                // the records written from now on need another force
+                _forceQueued.set(false);
+                buffer.force();
+            });
+        }
+    }
+
+    /**
+     * Empties the journal after the file was saved, the edits journaled
+     * from now on apply to the saved file
+     */
+    public void checkpoint() throws IOException {
+        // the records are cut off in the page of the header that names the
+        // new file, so they reach the device together
+        _buffer.putInt(HEADER_SIZE, 0);
+        _buffer.position(0);
+        _buffer.putInt(MAGIC);
+        _buffer.putInt(FORMAT);
+        _buffer.putLong(fileSize());
+        _buffer.putLong(fileModified());
+        _position = _forcedPosition = HEADER_SIZE;
+        force();
+    }
+
+    /**
+     * Closes the journal, deleting it if it holds no edits
+     */
+    public void close() {
+        final boolean empty = _position == HEADER_SIZE;
+        final MappedByteBuffer buffer = _buffer;
+        // after the forces requested before
+        _forcer.execute(() -> {
+            try {
+                buffer.force();
+                _channel.close();
+                if (empty) {
+                    Files.deleteIfExists(_journalPath);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        _forcer.shutdown();
+    }
+
+    private void map(long size) throws IOException {
+        _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private long fileSize() throws IOException {
+        return Files.size(_filePath);
+    }
+
+    private long fileModified() throws IOException {
+        return Files.readAttributes(_filePath, BasicFileAttributes.class)
+            .lastModifiedTime().toMillis();
+    }
+}
@@ -1,32 +1,70 @@
 package com.text.edit;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * GapBuffer is a threadsafe EditBuffer that is optimized for editing with a cursor
  * which tends to make a sequence of inserts and deletes at the same place in the buffer
  *
+ * A single writer and any number of readers share the buffer through a
+ * StampedLock: charAt() and length() read optimistically without locking,
+ * the other reads take a shared lock, and edits take the exclusive lock
+ * and bump the version returned by getVersion(). The lock is not
+ * reentrant, so public methods only call the private unlocked helpers.
+ *
+ * snapshot() shares _contents with the returned view instead of copying
+ * it. Edits keep writing in place: the part of the array hidden in the gap
+ * of every live snapshot is overwritten freely, and before any other part
+ * is overwritten each snapshot that can see it copies just that span, so
+ * an edit costs the chars it touches and never a copy of the whole text.
+ *
  * have all methods work with charOffsets and move all gap handling to getRealIndex() 
  */
 
-public class GapBuffer implements CharSequence {
+public class GapBuffer implements TextStorage {
 
     private char[] _contents;
     private int _gapStartIndex;
     private int _gapEndIndex;
-    private int _lineCount;
-    private BufferCache _cache;
+    private LineIndex _lineIndex;
     private UndoStack _undoStack;
 
+    private final StampedLock _lock = new StampedLock();
+    // incremented by every change of the text
+    private long _version;
+    private OnEditListener[] _editListeners = new OnEditListener[0];
+
+    // live snapshots sharing _contents, and the part of _contents that
+    // none of them can see and that edits may overwrite without copying
+    private Snapshot[] _snapshots = new Snapshot[4];
+    private int _snapshotCount;
+    private int _safeStart;
+    private int _safeEnd;
+
+    // gap management policy, in chars
+    private int _minGapSize = 16;
+    private int _maxGapSize = 1 << 20;
+    private float _growthFactor = 1.0f;
+
+    // chars copied by gap movement and reallocation
+    private long _lastCharsMoved;
+    private long _totalCharsMoved;
+
+    // chars handed to a TextFileWriter while holding the lock
+    private static final int WRITE_CHUNK = 256 * 1024;
+
     private final int EOF = '\uFFFF';
     private final int NEWLINE = '\n';
+    // some VMs reserve header words in an array
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
 
     public GapBuffer() {
         _contents = new char[16]; // init size 16
-        _lineCount = 1;
         _gapStartIndex = 0;
         _gapEndIndex = _contents.length;
-        _cache = new BufferCache();
+        _lineIndex = new LineIndex();
         _undoStack = new UndoStack();
     }
 
@@ -37,13 +75,9 @@ public class GapBuffer implements CharSequence {
 
     public GapBuffer(char[] buffer) {
         _contents = buffer;
-        _lineCount = 1;
-        _cache = new BufferCache();
+        _lineIndex = new LineIndex();
+        _lineIndex.insert(0, buffer, 0, buffer.length);
         _undoStack = new UndoStack();
-        for (char c : _contents) {
-            if (c == NEWLINE)
-                _lineCount++;
-        }
     }
 
     /**
@@ -52,11 +86,15 @@ public class GapBuffer implements CharSequence {
      * @param lineNumber The index of the line of interest
      * @return The text on lineNumber, or an empty string if the line does not exist
      */
-    public synchronized String getLine(int lineNumber) {
-        int startIndex = getLineOffset(lineNumber);
-        int length = getLineLength(lineNumber);
-
-        return substring(startIndex, startIndex + length);
+    public String getLine(int lineNumber) {
+        long stamp = _lock.readLock();
+        try {
+            int startIndex = lineOffset(lineNumber);
+            int length = lineLength(lineNumber);
+            return copyString(startIndex, startIndex + length);
+        } finally {
+            _lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -64,222 +102,318 @@ public class GapBuffer implements CharSequence {
      * The offset is counted from the beginning of the text.
      *
      * @param lineNumber The index of the line of interest
-     * @return The character offset of lineNumber, or -1 if the line does not exist
+     * @return The character offset of lineNumber
      */
-    public synchronized int getLineOffset(int lineNumber) {
-        if (lineNumber <= 0 || lineNumber > getLineCount()) {
-            throw new IllegalArgumentException("line index is invalid");
+    public int getLineOffset(int lineNumber) {
+        long stamp = _lock.readLock();
+        try {
+            return lineOffset(lineNumber);
+        } finally {
+            _lock.unlockRead(stamp);
         }
+    }
 
-        int lineIndex = --lineNumber;
-        // start search from nearest known lineIndex~charOffset pair
-        Pair<Integer, Integer> cacheEntry = _cache.getNearestLine(lineIndex);
-        int cacheLine = cacheEntry.first;
-        int cacheOffset = cacheEntry.second;
-
-        int offset = 0;
-        if (lineIndex > cacheLine) {
-            offset = findCharOffset(lineIndex, cacheLine, cacheOffset);
-        } else if (lineIndex < cacheLine) {
-            offset = findCharOffsetBackward(lineIndex, cacheLine, cacheOffset);
-        } else {
-            offset = cacheOffset;
+    private int lineOffset(int lineNumber) {
+        if (lineNumber <= 0 || lineNumber > _lineIndex.getLineCount()) {
+            throw new IllegalArgumentException("line index is invalid");
         }
+        return _lineIndex.getLineStart(lineNumber - 1);
+    }
 
-        if (offset >= 0) {
-            // seek successful
-            _cache.updateEntry(lineIndex, offset);
+    /**
+     * Get the line number that charOffset is on
+     *
+     * @return The line number that charOffset is on
+     */
+    public int findLineNumber(int charOffset) {
+        long stamp = _lock.readLock();
+        try {
+            assert isValid(charOffset);
+            return _lineIndex.findLine(charOffset) + 1;
+        } finally {
+            _lock.unlockRead(stamp);
         }
-        return offset;
     }
 
-    /*
-     * Precondition: startOffset is the offset of startLine
-     */
-    private int findCharOffset(int targetLine, int startLine, int startOffset) {
-        assert isValid(startOffset);
 
-        int currLine = startLine;
-        int offset = getRealIndex(startOffset);
+    /**
+     * Finds the number of char on the specified line,
+     * not counting the terminating \n.
+     *
+     * @return The number of chars in lineNumber
+     */
+    public int getLineLength(int lineNumber) {
+        long stamp = _lock.readLock();
+        try {
+            return lineLength(lineNumber);
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
 
-        while ((currLine < targetLine) && (offset < _contents.length)) {
-            if (_contents[offset] == NEWLINE) {
-                ++currLine;
+    private int lineLength(int lineNumber) {
+        int lineIndex = lineNumber - 1;
+        int lineLength = _lineIndex.getLineSize(lineIndex);
+        if (lineIndex < _lineIndex.getLineCount() - 1) {
+            // exclude the \n, and the \r of a \r\n line ending
+            --lineLength;
+            int start = _lineIndex.getLineStart(lineIndex);
+            if (lineLength > 0 && _contents[getRealIndex(start + lineLength - 1)] == '\r') {
+                --lineLength;
             }
-            ++offset;
+        }
+        return lineLength;
+    }
 
-            // skip the gap
-            if (offset == _gapStartIndex) {
-                offset = _gapEndIndex;
+    /**
+     * Gets the char at charOffset
+     * Does not do bounds-checking.
+     *
+     * Reads optimistically without taking the lock, and only falls back
+     * to a read lock if an edit happened meanwhile.
+     *
+     * @return The char at charOffset. If charOffset is invalid, the result
+     * 		is undefined.
+     */
+    public char charAt(int charOffset) {
+        long stamp = _lock.tryOptimisticRead();
+        if (stamp != 0) {
+            // the fields may be torn by a concurrent edit, read them once
+            // and keep the index in bounds until the stamp is validated
+            char[] contents = _contents;
+            int gapStart = _gapStartIndex;
+            int index = charOffset < gapStart ? charOffset : charOffset + _gapEndIndex - gapStart;
+            char c = index >= 0 && index < contents.length ? contents[index] : 0;
+            if (_lock.validate(stamp)) {
+                return c;
             }
         }
 
-        if (currLine != targetLine) {
-            return -1;
+        stamp = _lock.readLock();
+        try {
+            return _contents[getRealIndex(charOffset)];
+        } finally {
+            _lock.unlockRead(stamp);
         }
-        return getLogicalIndex(offset);
     }
 
-    /*
-     * Precondition: startOffset is the offset of startLine
+    /**
+     * Gets up to maxChars number of chars starting at charOffset
+     *
+     * @return The chars starting from charOffset, up to a maximum of maxChars.
+     * 		An empty array is returned if charOffset is invalid or maxChars is
+     *		non-positive.
      */
-    private int findCharOffsetBackward(int targetLine, int startLine, int startOffset) {
-        assert isValid(startOffset);
+    public CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
 
-        if (targetLine == 0) {
-            return 0; // line index 0 always has 0 offset
+    public String substring(int start, int end) {
+        long stamp = _lock.readLock();
+        try {
+            return copyString(start, end);
+        } finally {
+            _lock.unlockRead(stamp);
         }
+    }
 
-        int currLine = startLine;
-        int offset = getRealIndex(startOffset);
-        while (currLine > (targetLine - 1) && offset >= 0) {
-            // skip behind the gap
-            if (offset == _gapEndIndex) {
-                offset = _gapStartIndex;
-            }
-            --offset;
+    private String copyString(int start, int end) {
+        assert isValid(start) && isValid(end);
+        end = Math.min(end, textLength());
+        char[] chars = new char[end - start];
+        copyChars(start, end, chars, 0);
+        return new String(chars);
+    }
 
-            if (_contents[offset] == NEWLINE) {
-                --currLine;
+    /**
+     * Copies the chars [start, end) to dst under a single read lock, so
+     * a lexer or a search can read the buffer a block at a time instead
+     * of paying for the lock on every charAt().
+     *
+     * @return The version of the text the chars were copied from
+     */
+    public long getChars(int start, int end, char[] dst, int dstBegin) {
+        long stamp = _lock.readLock();
+        try {
+            if (start < 0 || end > textLength() || start > end) {
+                throw new IndexOutOfBoundsException("invalid range [" + start + ", " + end + ")");
             }
+            copyChars(start, end, dst, dstBegin);
+            return _version;
+        } finally {
+            _lock.unlockRead(stamp);
         }
+    }
 
-        int charOffset;
-        if (offset >= 0) {
-            // now at the '\n' of the line before targetLine
-            charOffset = getLogicalIndex(offset);
-            ++charOffset;
-        } else {
-            //assert isValid(offset);
-            charOffset = -1;
+    /**
+     * Adds the start and end offsets of the matches of search starting in
+     * [from, to) to result, scanning the array on both sides of the gap.
+     *
+     * @return The offset to continue searching from
+     */
+    public int find(LiteralSearch search, int from, int to, IntList result) {
+        long stamp = _lock.readLock();
+        try {
+            return search.find(_contents, _gapStartIndex, _gapEndIndex, from, to, result);
+        } finally {
+            _lock.unlockRead(stamp);
         }
-        return charOffset;
     }
 
     /**
-     * Get the line number that charOffset is on
-     *
-     * @return The line number that charOffset is on, or -1 if charOffset is invalid
-     */
-    public synchronized int findLineNumber(int charOffset) {
-        assert isValid(charOffset);
-
-        Pair<Integer, Integer> cachedEntry = _cache.getNearestCharOffset(charOffset);
-        int line = cachedEntry.first;
-        int offset = getRealIndex(cachedEntry.second);
-        int targetOffset = getRealIndex(charOffset);
-        int lastKnownLine = -1;
-        int lastKnownCharOffset = -1;
-
-        if (targetOffset > offset) {
-            // search forward
-            while ((offset < targetOffset) && (offset < _contents.length)) {
-                if (_contents[offset] == NEWLINE) {
-                    ++line;
-                    lastKnownLine = line;
-                    lastKnownCharOffset = getLogicalIndex(offset) + 1;
-                }
+     * Copies the chars [start, end) to dst with at most two block copies,
+     * one for each side of the gap. No error checking is done.
+     */
+    private void copyChars(int start, int end, char[] dst, int dstBegin) {
+        if (end <= _gapStartIndex) {
+            System.arraycopy(_contents, start, dst, dstBegin, end - start);
+        } else if (start >= _gapStartIndex) {
+            System.arraycopy(_contents, start + gapSize(), dst, dstBegin, end - start);
+        } else {
+            int before = _gapStartIndex - start;
+            System.arraycopy(_contents, start, dst, dstBegin, before);
+            System.arraycopy(_contents, _gapEndIndex, dst, dstBegin + before, end - _gapStartIndex);
+        }
+    }
 
-                ++offset;
-                // skip the gap
-                if (offset == _gapStartIndex) {
-                    offset = _gapEndIndex;
-                }
+    /**
+     * @return The number of edits made to the buffer so far. Text read
+     *          with the same version comes from the same state.
+     */
+    public long getVersion() {
+        long stamp = _lock.tryOptimisticRead();
+        long version = _version;
+        if (!_lock.validate(stamp)) {
+            stamp = _lock.readLock();
+            try {
+                version = _version;
+            } finally {
+                _lock.unlockRead(stamp);
             }
-        } else if (targetOffset < offset) {
-            // search backward
-            while ((offset > targetOffset) && (offset > 0)) {
-                // skip behind the gap
-                if (offset == _gapEndIndex) {
-                    offset = _gapStartIndex;
-                }
-                --offset;
+        }
+        return version;
+    }
 
-                if (_contents[offset] == NEWLINE) {
-                    lastKnownLine = line;
-                    lastKnownCharOffset = getLogicalIndex(offset) + 1;
-                    --line;
-                }
-            }
+    /**
+     * Adds a listener told about every change of the text. Listeners are
+     * called under the write lock and must not call back into the buffer.
+     */
+    public void addOnEditListener(OnEditListener listener) {
+        long stamp = _lock.writeLock();
+        try {
+            int count = _editListeners.length;
+            _editListeners = Arrays.copyOf(_editListeners, count + 1);
+            _editListeners[count] = listener;
+        } finally {
+            _lock.unlockWrite(stamp);
         }
+    }
 
-        if (offset == targetOffset) {
-            if (lastKnownLine != -1) {
-                // cache the lookup entry
-                _cache.updateEntry(lastKnownLine, lastKnownCharOffset);
+    public void removeOnEditListener(OnEditListener listener) {
+        long stamp = _lock.writeLock();
+        try {
+            OnEditListener[] listeners = _editListeners;
+            for (int i = 0; i < listeners.length; ++i) {
+                if (listeners[i] == listener) {
+                    _editListeners = new OnEditListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, _editListeners, 0, i);
+                    System.arraycopy(listeners, i + 1, _editListeners, i, listeners.length - i - 1);
+                    break;
+                }
             }
-            return line + 1;
-        } else {
-            return 0;
+        } finally {
+            _lock.unlockWrite(stamp);
         }
     }
 
-
     /**
-     * Finds the number of char on the specified line.
-     * All valid lines contain at least one char, which may be a non-printable
-     * one like \n, \t or EOF.
-     *
-     * @return The number of chars in lineNumber, or 0 if the line does not exist.
+     * Takes an immutable view of the text that shares _contents, see
+     * the class comment
      */
-    public synchronized int getLineLength(int lineNumber) {
-        int lineLength = 0;
-        int pos = getLineOffset(lineNumber);
-        pos = getRealIndex(pos);
+    public TextSnapshot snapshot() {
+        long stamp = _lock.writeLock();
+        try {
+            Snapshot snapshot = new Snapshot(this, _contents, 
+                                             _gapStartIndex, _gapEndIndex, _version);
+            if (_snapshotCount == _snapshots.length) {
+                _snapshots = Arrays.copyOf(_snapshots, _snapshotCount * 2);
+            }
+            _snapshots[_snapshotCount++] = snapshot;
+            updateSafeRange();
+            return snapshot;
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
 
-        //TODO consider adding check for (pos < _contents.length) in case EOF is not properly set
-        while (pos < _contents.length &&
-               _contents[pos] != NEWLINE &&
-               _contents[pos] != EOF) {
-            ++lineLength;
-            ++pos;
-            // skip the gap
-            if (pos == _gapStartIndex) {
-                pos = _gapEndIndex;
+    public void copyLines(LineIndex lines) {
+        long stamp = _lock.readLock();
+        try {
+            lines.copyFrom(_lineIndex);
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    private void releaseSnapshot(Snapshot snapshot) {
+        long stamp = _lock.writeLock();
+        try {
+            // snapshots of an array that was replaced are no longer tracked
+            for (int i = 0; i < _snapshotCount; ++i) {
+                if (_snapshots[i] == snapshot) {
+                    _snapshots[i] = _snapshots[--_snapshotCount];
+                    _snapshots[_snapshotCount] = null;
+                    updateSafeRange();
+                    break;
+                }
             }
+        } finally {
+            _lock.unlockWrite(stamp);
         }
-        return lineLength;
     }
 
     /**
-     * Gets the char at charOffset
-     * Does not do bounds-checking.
-     *
-     * @return The char at charOffset. If charOffset is invalid, the result
-     * 		is undefined.
+     * Stops tracking the live snapshots once _contents is replaced. The
+     * old array is left to them and is never written again.
      */
-    public synchronized char charAt(int charOffset) {
-        return _contents[getRealIndex(charOffset)];
+    private void detachSnapshots() {
+        Arrays.fill(_snapshots, 0, _snapshotCount, null);
+        _snapshotCount = 0;
     }
 
     /**
-     * Gets up to maxChars number of chars starting at charOffset
-     *
-     * @return The chars starting from charOffset, up to a maximum of maxChars.
-     * 		An empty array is returned if charOffset is invalid or maxChars is
-     *		non-positive.
+     * The safe range is the part of _contents in the gap of every live
+     * snapshot
      */
-    public synchronized CharSequence subSequence(int start, int end) {
-        assert isValid(start) && isValid(end);
-        int count = end - start;
-        if (end > length()) {
-            count = length() - start;
+    private void updateSafeRange() {
+        _safeStart = 0;
+        _safeEnd = _contents.length;
+        for (int i = 0; i < _snapshotCount; ++i) {
+            _safeStart = Math.max(_safeStart, _snapshots[i]._gapStartIndex);
+            _safeEnd = Math.min(_safeEnd, _snapshots[i]._gapEndIndex);
         }
-        int realIndex = getRealIndex(start);
-        char[] chars = new char[count];
+    }
 
-        for (int i = 0; i < count; ++i) {
-            chars[i] = _contents[realIndex];
-            // skip the gap
-            if (++realIndex == _gapStartIndex) {
-                realIndex = _gapEndIndex;
-            }
-        }
-        return new String(chars);
+    /**
+     * Whether [start, end) of _contents can be overwritten without
+     * changing the text of a live snapshot
+     */
+    private boolean isWritable(int start, int end) {
+        return _snapshotCount == 0 || (start >= _safeStart && end <= _safeEnd);
     }
 
-    public synchronized String substring(int start, int end) {
-        return subSequence(start, end).toString();
+    /**
+     * Has every live snapshot that can see part of [start, end) of
+     * _contents keep its own copy of that part. Called before the range
+     * is overwritten.
+     */
+    private void preserve(int start, int end) {
+        if (isWritable(start, end)) {
+            return;
+        }
+        for (int i = 0; i < _snapshotCount; ++i) {
+            _snapshots[i].preserve(start, end);
+        }
     }
 
     /**
@@ -287,52 +421,130 @@ public class GapBuffer implements CharSequence {
      *
      * No error checking is done
      */
-    public synchronized GapBuffer insert(int offset, String str, boolean capture) {
+    public GapBuffer insert(int offset, String str, boolean capture) {
         return insert(offset, str, capture, System.nanoTime());
     }
     
-    public synchronized GapBuffer insert(int offset, String str, 
-                                         boolean capture, long timestamp) {
+    public GapBuffer insert(int offset, String str, 
+                            boolean capture, long timestamp) {
+        long stamp = _lock.writeLock();
+        try {
+            insertString(offset, str, capture, timestamp);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+        return GapBuffer.this;
+    }
+
+    private void insertString(int offset, String str, 
+                              boolean capture, long timestamp) {
 		int length = str.length();
-        if (capture && length > 0) {
+        if (length == 0) {
+            // nothing to do, keep the gap where the undo stack expects it
+            return;
+        }
+
+        if (capture) {
 			_undoStack.captureInsert(offset, offset + length, timestamp);
 		}
 
-        int insertIndex = getRealIndex(offset);
+        openGap(offset, length);
+        str.getChars(0, length, _contents, _gapStartIndex);
+        _gapStartIndex += length;
 
-        // shift gap to insertion point
-        if (insertIndex != _gapEndIndex) {
-            if (isBeforeGap(insertIndex)) {
-                shiftGapLeft(insertIndex);
-            } else {
-                shiftGapRight(insertIndex);
-            }
+        inserted(offset, length);
+    }
+
+    /**
+     * Insert count chars of chars, starting from start, into position offset
+     * with a single block copy.
+     *
+     * No error checking is done
+     */
+    public GapBuffer insert(int offset, char[] chars, int start, 
+                            int count, boolean capture) {
+        long stamp = _lock.writeLock();
+        try {
+            insertChars(offset, chars, start, count, capture);
+        } finally {
+            _lock.unlockWrite(stamp);
         }
+        return GapBuffer.this;
+    }
 
-        if (length >= gapSize()) {
-            expandBuffer(length - gapSize());
+    /**
+     * Inserts the undo record of handle, length chars long, at offset
+     */
+    private void insertRecord(int offset, TextArena arena, long handle, int length) {
+        openGap(offset, length);
+        arena.getChars(handle, length, _contents, _gapStartIndex);
+        _gapStartIndex += length;
+
+        inserted(offset, length);
+    }
+
+    private void insertChars(int offset, char[] chars, int start, 
+                             int count, boolean capture) {
+        if (count == 0) {
+            return;
         }
 
-        for (int i = 0; i < length; ++i) {
-            char c = str.charAt(i);
-            if (c == NEWLINE) {
-                ++_lineCount;
+        if (capture) {
+            _undoStack.captureInsert(offset, offset + count, System.nanoTime());
+        }
+
+        openGap(offset, count);
+        System.arraycopy(chars, start, _contents, _gapStartIndex, count);
+        _gapStartIndex += count;
+
+        inserted(offset, count);
+    }
+
+    /**
+     * Moves the gap to offset and makes sure it has room for length chars
+     */
+    private void openGap(int offset, int length) {
+        _lastCharsMoved = 0;
+        int insertIndex = getRealIndex(offset);
+
+        if (length >= gapSize()) {
+            // reallocate with the gap already at the insertion point
+            expandBuffer(offset, length + 1);
+        } else {
+            if (insertIndex != _gapEndIndex) {
+                // shift gap to insertion point
+                if (isBeforeGap(insertIndex)) {
+                    shiftGapLeft(insertIndex);
+                } else {
+                    shiftGapRight(insertIndex);
+                }
             }
-            _contents[_gapStartIndex] = c;
-            ++_gapStartIndex;
+            // the new chars are written at the start of the gap
+            preserve(_gapStartIndex, _gapStartIndex + length);
         }
+    }
 
-        _cache.invalidateCache(offset);
+    public GapBuffer append(String str, boolean capture) {
+        long stamp = _lock.writeLock();
+        try {
+            insertString(textLength(), str, capture, System.nanoTime());
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
         return GapBuffer.this;
     }
 
-    public synchronized GapBuffer append(String str, boolean capture) {
-        insert(length(), str, capture);
-        return GapBuffer.this;
+    public GapBuffer append(String str) {
+        return append(str, false);
     }
 
-    public synchronized GapBuffer append(String str) {
-        insert(length(), str, false);
+    public GapBuffer append(char[] chars, int start, int count) {
+        long stamp = _lock.writeLock();
+        try {
+            insertChars(textLength(), chars, start, count, false);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
         return GapBuffer.this;
     }
 
@@ -343,16 +555,33 @@ public class GapBuffer implements CharSequence {
      *
      * No error checking is done
      */
-    public synchronized GapBuffer delete(int start, int end, boolean capture) {
+    public GapBuffer delete(int start, int end, boolean capture) {
         return delete(start, end, capture, System.nanoTime());
     }
     
-    public synchronized GapBuffer delete(int start, int end, 
+    public GapBuffer delete(int start, int end, 
     boolean capture, long timestamp) {
-		if (capture && start < end) {
+        long stamp = _lock.writeLock();
+        try {
+            deleteChars(start, end, capture, timestamp);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+        return GapBuffer.this;
+    }
+
+    private void deleteChars(int start, int end, 
+                             boolean capture, long timestamp) {
+        if (start >= end) {
+            // nothing to do, keep the gap where the undo stack expects it
+            return;
+        }
+
+		if (capture) {
             _undoStack.captureDelete(start, end, timestamp);
 		}
 
+        _lastCharsMoved = 0;
         int newGapStart = end;
 
         // shift gap to deletion point
@@ -365,36 +594,125 @@ public class GapBuffer implements CharSequence {
         }
 
         // increase gap size
-        int len = end - start;
-        for (int i = 0; i < len; ++i) {
-            --_gapStartIndex;
-            if (_contents[_gapStartIndex] == NEWLINE) {
-                --_lineCount;
+        _gapStartIndex -= end - start;
+
+        deleted(start, end);
+
+        if (gapSize() > Math.max(_maxGapSize, textLength())) {
+            // the deleted chars in the gap are about to be dropped
+            if (capture) {
+                _undoStack.recordPending();
             }
+            compactGap();
         }
+    }
 
-        _cache.invalidateCache(start);
+    public GapBuffer replace(int start, int end, String str, boolean capture) {
+        long stamp = _lock.writeLock();
+        try {
+            long timestamp = System.nanoTime();
+            deleteChars(start, end, capture, timestamp);
+            insertString(start, str, capture, timestamp);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
         return GapBuffer.this;
     }
 
-    public synchronized GapBuffer replace(int start, int end, String str, boolean capture) {
-        delete(start, end, capture);
-        insert(start, str, capture);
+    /**
+     * Replaces count sorted, non-overlapping ranges [starts[i], ends[i])
+     * with str in a single pass over the text. The whole replacement is
+     * one undo action and the line index is rebuilt once.
+     */
+    public GapBuffer replaceAll(int[] starts, int[] ends, int count, 
+                                String str, boolean capture) {
+        if (count == 0) {
+            return GapBuffer.this;
+        }
+
+        int[] removed = new int[count];
+        for (int i = 0; i < count; ++i) {
+            removed[i] = ends[i] - starts[i];
+        }
+        char[] chars = str.toCharArray();
+
+        long stamp = _lock.writeLock();
+        try {
+            // the gap that may hold undo data is dropped by the splice
+            _undoStack.recordPending();
+            if (capture) {
+                _undoStack.captureReplaceAll(starts, removed, count, chars);
+            }
+            splice(count, starts, removed, chars, null, chars.length);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
         return GapBuffer.this;
     }
 
     /**
-     * Gets charCount number of consecutive characters starting from _gapStartIndex.
-     *
-     * Only UndoStack should use this method. No error checking is done.
+     * Replaces count sorted, non-overlapping ranges by copying the text
+     * once into a new array, with the gap at its end. Range i starts at
+     * starts[i] and is removed[i] chars long. It is replaced by the next
+     * inserted[i] chars of text, or by the first insertedEach chars of
+     * text if inserted is null.
      */
-    private char[] gapSubSequence(int charCount) {
-        char[] chars = new char[charCount];
+    private void splice(int count, int[] starts, int[] removed, 
+                        char[] text, int[] inserted, int insertedEach) {
+        int length = textLength();
+        long newLength = length;
+        for (int i = 0; i < count; ++i) {
+            newLength += (inserted != null ? inserted[i] : insertedEach) - removed[i];
+        }
+        if (newLength > MAX_ARRAY_SIZE - _minGapSize) {
+            throw new OutOfMemoryError("text is too large");
+        }
 
-        for (int i = 0; i < charCount; ++i) {
-            chars[i] = _contents[_gapStartIndex + i];
+        int newGapSize = (int) Math.max(_minGapSize, Math.min(newLength * _growthFactor, 
+                                                              _maxGapSize));
+        newGapSize = (int) Math.min(newGapSize, MAX_ARRAY_SIZE - newLength);
+        char[] temp = new char[(int) newLength + newGapSize];
+
+        int from = 0;
+        int to = 0;
+        int textOffset = 0;
+        for (int i = 0; i < count; ++i) {
+            copyChars(from, starts[i], temp, to);
+            to += starts[i] - from;
+
+            int insertLength = inserted != null ? inserted[i] : insertedEach;
+            System.arraycopy(text, textOffset, temp, to, insertLength);
+            to += insertLength;
+            if (inserted != null) {
+                textOffset += insertLength;
+            }
+            from = starts[i] + removed[i];
+        }
+        copyChars(from, length, temp, to);
+
+        _contents = temp;
+        _gapStartIndex = (int) newLength;
+        _gapEndIndex = temp.length;
+        // the old array is left to the snapshots
+        detachSnapshots();
+        _lastCharsMoved = 0;
+        moved((int) newLength);
+
+        _lineIndex.clear();
+        _lineIndex.insert(0, _contents, 0, (int) newLength);
+        _version++;
+
+        for (OnEditListener listener : _editListeners) {
+            // from the last range back, so every offset is still valid
+            int end = textOffset;
+            for (int i = count - 1; i >= 0; --i) {
+                int insertLength = inserted != null ? inserted[i] : insertedEach;
+                int start = inserted != null ? end - insertLength : 0;
+                listener.onDelete(starts[i], starts[i] + removed[i]);
+                listener.onInsert(starts[i], text, start, insertLength);
+                end = start;
+            }
         }
-        return chars;
     }
 
     /**
@@ -404,82 +722,208 @@ public class GapBuffer implements CharSequence {
      * Only UndoStack should use this method to carry out a simple undo/redo
      * of insertions/deletions. No error checking is done.
      */
-    private synchronized void shiftGapStart(int displacement) {
+    private void shiftGapStart(int displacement) {
+        int gapStart = _gapStartIndex;
+        _gapStartIndex += displacement;
+
+        // the chars before the gap have the same logical and real index
         if (displacement >= 0)
-            _lineCount += countNewlines(_gapStartIndex, displacement);
+            inserted(gapStart, displacement);
         else
-            _lineCount -= countNewlines(_gapStartIndex + displacement, -displacement);
-
-        _gapStartIndex += displacement;
-        _cache.invalidateCache(getLogicalIndex(_gapStartIndex - 1) + 1);
+            deleted(gapStart + displacement, gapStart);
     }
 
-    //does NOT skip the gap when examining consecutive positions
-    private int countNewlines(int start, int totalChars) {
-        int newlines = 0;
-        for (int i = start; i < (start + totalChars); ++i) {
-            if (_contents[i] == NEWLINE) {
-                ++newlines;
-            }
+    /**
+     * Updates the line index and the version after count chars were
+     * inserted at offset, and tells the edit listeners
+     */
+    private void inserted(int offset, int count) {
+        // the inserted chars are right before the gap
+        _lineIndex.insert(offset, _contents, offset, count);
+        _version++;
+        for (OnEditListener listener : _editListeners) {
+            listener.onInsert(offset, _contents, offset, count);
         }
+    }
 
-        return newlines;
+    private void deleted(int start, int end) {
+        _lineIndex.delete(start, end);
+        _version++;
+        for (OnEditListener listener : _editListeners) {
+            listener.onDelete(start, end);
+        }
     }
 
     /**
      * Adjusts gap so that _gapStartIndex is at newGapStart
      */
     private void shiftGapLeft(int newGapStart) {
-        while (_gapStartIndex > newGapStart) {
-            _gapEndIndex--;
-            _gapStartIndex--;
-            _contents[_gapEndIndex] = _contents[_gapStartIndex];
-        }
+        int count = _gapStartIndex - newGapStart;
+        preserve(_gapEndIndex - count, _gapEndIndex);
+        System.arraycopy(_contents, newGapStart, _contents, _gapEndIndex - count, count);
+        _gapStartIndex = newGapStart;
+        _gapEndIndex -= count;
+        moved(count);
     }
 
     /**
      * Adjusts gap so that _gapEndIndex is at newGapEnd
      */
     private void shiftGapRight(int newGapEnd) {
-        while (_gapEndIndex < newGapEnd) {
-            _contents[_gapStartIndex] = _contents[_gapEndIndex];
-            _gapStartIndex++;
-            _gapEndIndex++;
+        int count = newGapEnd - _gapEndIndex;
+        preserve(_gapStartIndex, _gapStartIndex + count);
+        System.arraycopy(_contents, _gapEndIndex, _contents, _gapStartIndex, count);
+        _gapStartIndex += count;
+        _gapEndIndex = newGapEnd;
+        moved(count);
+    }
+
+    /**
+     * Copies _contents into a new buffer whose gap is at the logical index
+     * gapStart and is the preferred gap size plus minGapSize chars long.
+     */
+    private void expandBuffer(int gapStart, int minGapSize) {
+        long available = MAX_ARRAY_SIZE - textLength();
+        if (minGapSize > available) {
+            throw new OutOfMemoryError("text is too large");
         }
+        reallocate(gapStart, (int) Math.min(available, (long) minGapSize + preferredGapSize()));
     }
 
     /**
-     * Copies _contents into a buffer that is larger by
-     * 		Math.max(minIncrement, _contents.length * 2 + 2) bytes.
-     *
-     * _allocMultiplier doubles on every call to this method, to avoid the
-     * overhead of repeated allocations.
+     * Copies _contents into a buffer whose gap is at the logical index
+     * gapStart and is newGapSize chars long. The text is moved with at most
+     * three block copies, so relocating the gap is free when it happens
+     * together with a reallocation.
      */
-    private void expandBuffer(int minIncrement) {
-        //TODO handle new size > MAX_INT or allocation failure
-        int incrSize = Math.max(minIncrement, _contents.length * 2 + 2);
-        char[] temp = new char[_contents.length + incrSize];
-        // check the maxiunm size
-        assert temp.length <= Integer.MAX_VALUE;
+    private void reallocate(int gapStart, int newGapSize) {
+        int length = textLength();
+        char[] temp = new char[length + newGapSize];
+        copyChars(0, gapStart, temp, 0);
+        copyChars(gapStart, length, temp, gapStart + newGapSize);
+
+        _contents = temp;
+        _gapStartIndex = gapStart;
+        _gapEndIndex = gapStart + newGapSize;
+        // the old array is left to the snapshots
+        detachSnapshots();
+        moved(length);
+    }
+
+    /**
+     * The gap size to allocate, proportional to the text length and
+     * bounded by the growth policy
+     */
+    private int preferredGapSize() {
+        long size = (long) (textLength() * _growthFactor);
+        return (int) Math.max(_minGapSize, Math.min(size, _maxGapSize));
+    }
 
-        int i = 0;
-        while (i < _gapStartIndex) {
-            temp[i] = _contents[i];
-            ++i;
+    /**
+     * Sets the gap management policy. A reallocation leaves a gap of
+     * length() * growthFactor chars, bounded by [minGapSize, maxGapSize].
+     * A gap that grows beyond Math.max(maxGapSize, length()) because of
+     * deletions is given back by compacting the buffer.
+     */
+    public void setGapPolicy(int minGapSize, int maxGapSize, float growthFactor) {
+        if (minGapSize < 1 || maxGapSize < minGapSize || growthFactor < 0) {
+            throw new IllegalArgumentException("invalid gap policy");
+        }
+        long stamp = _lock.writeLock();
+        try {
+            _minGapSize = minGapSize;
+            _maxGapSize = maxGapSize;
+            _growthFactor = growthFactor;
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Makes room for at least capacity chars of text, so that a large text
+     * can be loaded without intermediate reallocations
+     */
+    public void ensureCapacity(int capacity) {
+        long stamp = _lock.writeLock();
+        try {
+            int length = textLength();
+            if (capacity > length && capacity - length >= gapSize()) {
+                // undo data still waiting in the gap is about to be dropped
+                _undoStack.recordPending();
+                _lastCharsMoved = 0;
+                reallocate(_gapStartIndex, capacity - length + _minGapSize);
+            }
+        } finally {
+            _lock.unlockWrite(stamp);
         }
+    }
 
-        i = _gapEndIndex;
-        while (i < _contents.length) {
-            temp[i + incrSize] = _contents[i];
-            ++i;
+    /**
+     * Shrinks the gap to the preferred size of the growth policy
+     */
+    public void compact() {
+        long stamp = _lock.writeLock();
+        try {
+            // undo data still waiting in the gap is about to be dropped
+            _undoStack.recordPending();
+            compactGap();
+        } finally {
+            _lock.unlockWrite(stamp);
         }
+    }
 
-        _gapEndIndex += incrSize;
-        _contents = temp;
+    private void compactGap() {
+        int preferred = preferredGapSize();
+        if (gapSize() > preferred) {
+            reallocate(_gapStartIndex, preferred);
+        }
+    }
+
+    private void moved(int count) {
+        _lastCharsMoved += count;
+        _totalCharsMoved += count;
+    }
+
+    /**
+     * @return The bytes copied by gap movement and reallocation during
+     *          the last insert, delete or compaction
+     */
+    public long getLastMovedBytes() {
+        long stamp = _lock.readLock();
+        try {
+            return _lastCharsMoved * 2;
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The bytes copied by gap movement and reallocation since
+     *          the buffer was created
+     */
+    public long getTotalMovedBytes() {
+        long stamp = _lock.readLock();
+        try {
+            return _totalCharsMoved * 2;
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The bytes held by the char array, including the gap
+     */
+    public long getCapacityBytes() {
+        long stamp = _lock.readLock();
+        try {
+            return _contents.length * 2L;
+        } finally {
+            _lock.unlockRead(stamp);
+        }
     }
 
     private boolean isValid(int charOffset) {
-        return (charOffset >= 0 && charOffset <= this.length());
+        return (charOffset >= 0 && charOffset <= textLength());
     }
 
     private int gapSize() {
@@ -504,56 +948,421 @@ public class GapBuffer implements CharSequence {
         return index < _gapStartIndex;
     }
 
-    public synchronized int getLineCount() {
-        return _lineCount;
+    public int getLineCount() {
+        long stamp = _lock.readLock();
+        try {
+            return _lineIndex.getLineCount();
+        } finally {
+            _lock.unlockRead(stamp);
+        }
     }
 
     @Override
-    public synchronized int length() {
-        // TODO: Implement this method
+    public int length() {
+        long stamp = _lock.tryOptimisticRead();
+        int length = _contents.length - (_gapEndIndex - _gapStartIndex);
+        if (!_lock.validate(stamp)) {
+            stamp = _lock.readLock();
+            try {
+                length = textLength();
+            } finally {
+                _lock.unlockRead(stamp);
+            }
+        }
+        return length;
+    }
+
+    private int textLength() {
         return _contents.length - gapSize();
     }
 
     @Override
-    public synchronized String toString() {
-        // TODO: Implement this method
-        StringBuffer buf = new StringBuffer();
-        int len = this.length();
-        for (int i=0; i < len; i++) {
-            buf.append(charAt(i));
+    public String toString() {
+        long stamp = _lock.readLock();
+        try {
+            return copyString(0, textLength());
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Writes the text before and after the gap straight from the array
+     * of a snapshot, so the buffer is neither locked nor copied while a
+     * large text is saved.
+     */
+    @Override
+    public void writeTo(TextFileWriter writer) throws IOException {
+        Snapshot snapshot = (Snapshot) snapshot();
+        try {
+            snapshot.writeTo(writer);
+        } finally {
+            snapshot.release();
         }
-        return new String(buf);
     }
 
     public boolean canUndo() {
-        return _undoStack.canUndo();
+        long stamp = _lock.readLock();
+        try {
+            return _undoStack.canUndo();
+        } finally {
+            _lock.unlockRead(stamp);
+        }
     }
 
     public boolean canRedo() {
-        return _undoStack.canRedo();
+        long stamp = _lock.readLock();
+        try {
+            return _undoStack.canRedo();
+        } finally {
+            _lock.unlockRead(stamp);
+        }
     }
 
     public int undo() {
-        return _undoStack.undo();
+        long stamp = _lock.writeLock();
+        try {
+            return _undoStack.undo();
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
     }
 
     public int redo() {
-        return _undoStack.redo();
+        long stamp = _lock.writeLock();
+        try {
+            return _undoStack.redo();
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
     }
 
     public void beginBatchEdit() {
-        _undoStack.beginBatchEdit();
+        long stamp = _lock.writeLock();
+        try {
+            _undoStack.beginBatchEdit();
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
     }
     
     public void endBatchEdit() {
-        _undoStack.endBatchEdit();
+        long stamp = _lock.writeLock();
+        try {
+            _undoStack.endBatchEdit();
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
     }
 
     public boolean isBatchEdit() {
-        return _undoStack.isBatchEdit();
+        long stamp = _lock.readLock();
+        try {
+            return _undoStack.isBatchEdit();
+        } finally {
+            _lock.unlockRead(stamp);
+        }
     }
     
+    /**
+     * A view of the text before and after the gap of an array that
+     * GapBuffer no longer writes to outside of its gap
+     */
+    /**
+     * A view of _contents as it was at one version. The spans the buffer
+     * overwrites afterwards are copied to the snapshot first, reads look
+     * them up before falling back to the shared array.
+     */
+    private static class Snapshot implements TextSnapshot {
+        private final GapBuffer _buffer;
+        private final char[] _contents;
+        private final int _gapStartIndex;
+        private final int _gapEndIndex;
+        private final long _version;
+        private boolean _released;
+
+        // the saved spans, disjoint and sorted by their real start index.
+        // Written under the buffer's lock, before it overwrites them.
+        private final StampedLock _lock = new StampedLock();
+        private int[] _savedStarts = new int[8];
+        private char[][] _saved = new char[8][];
+        private int _savedCount;
+
+        Snapshot(GapBuffer buffer, char[] contents, 
+                 int gapStartIndex, int gapEndIndex, long version) {
+            _buffer = buffer;
+            _contents = contents;
+            _gapStartIndex = gapStartIndex;
+            _gapEndIndex = gapEndIndex;
+            _version = version;
+        }
+
+        @Override
+        public long getVersion() {
+            return _version;
+        }
+
+        @Override
+        public int length() {
+            return _contents.length - (_gapEndIndex - _gapStartIndex);
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+            }
+            int real = index < _gapStartIndex ? index 
+                : index + _gapEndIndex - _gapStartIndex;
+
+            long stamp = _lock.tryOptimisticRead();
+            if (stamp != 0 && _savedCount == 0) {
+                // the char may be overwritten right after it is read, in
+                // which case the span was saved first and the stamp fails
+                char c = _contents[real];
+                if (_lock.validate(stamp)) {
+                    return c;
+                }
+            }
+
+            stamp = _lock.readLock();
+            try {
+                int i = floorSaved(real);
+                return i >= 0 && real < _savedStarts[i] + _saved[i].length 
+                    ? _saved[i][real - _savedStarts[i]] : _contents[real];
+            } finally {
+                _lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dst, int dstBegin) {
+            if (start < 0 || end > length() || start > end) {
+                throw new IndexOutOfBoundsException("invalid range [" + start + ", " + end + ")");
+            }
+
+            long stamp = _lock.readLock();
+            try {
+                if (end <= _gapStartIndex) {
+                    copyReal(start, end, dst, dstBegin);
+                } else if (start >= _gapStartIndex) {
+                    int gapLength = _gapEndIndex - _gapStartIndex;
+                    copyReal(start + gapLength, end + gapLength, dst, dstBegin);
+                } else {
+                    int before = _gapStartIndex - start;
+                    copyReal(start, _gapStartIndex, dst, dstBegin);
+                    copyReal(_gapEndIndex, end + _gapEndIndex - _gapStartIndex, 
+                             dst, dstBegin + before);
+                }
+            } finally {
+                _lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public int find(LiteralSearch search, int from, int to, IntList result) {
+            long stamp = _lock.tryOptimisticRead();
+            if (stamp != 0 && _savedCount == 0) {
+                int size = result.size();
+                int next = search.find(_contents, _gapStartIndex, _gapEndIndex, from, to, result);
+                if (_lock.validate(stamp)) {
+                    return next;
+                }
+                // an edit overwrote text the search may have read
+                result.truncate(size);
+            }
+            return search.find(this, from, to, result);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] chars = new char[end - start];
+            getChars(start, end, chars, 0);
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+
+        void writeTo(TextFileWriter writer) throws IOException {
+            int length = length();
+            char[] chunk = new char[Math.min(WRITE_CHUNK, length)];
+            for (int offset = 0; offset < length; offset += chunk.length) {
+                int count = Math.min(chunk.length, length - offset);
+                getChars(offset, offset + count, chunk, 0);
+                writer.write(chunk, 0, count);
+            }
+        }
+
+        /**
+         * Saves the chars of [start, end) of _contents the snapshot can
+         * see and has not saved yet. Called by the buffer, under its lock,
+         * before it overwrites the range.
+         */
+        void preserve(int start, int end) {
+            long stamp = _lock.writeLock();
+            try {
+                // the snapshot does not see its own gap
+                save(start, Math.min(end, _gapStartIndex));
+                save(Math.max(start, _gapEndIndex), end);
+            } finally {
+                _lock.unlockWrite(stamp);
+            }
+        }
+
+        private void save(int start, int end) {
+            int i = Math.max(floorSaved(start), 0);
+            while (start < end) {
+                // skip the spans ending before start
+                while (i < _savedCount && _savedStarts[i] + _saved[i].length <= start) {
+                    i++;
+                }
+
+                if (i < _savedCount && _savedStarts[i] <= start) {
+                    // already saved
+                    start = _savedStarts[i] + _saved[i].length;
+                } else {
+                    int next = i < _savedCount ? Math.min(end, _savedStarts[i]) : end;
+                    addSaved(i, start, Arrays.copyOfRange(_contents, start, next));
+                    start = next;
+                }
+                i++;
+            }
+        }
+
+        private void addSaved(int index, int start, char[] chars) {
+            if (_savedCount == _savedStarts.length) {
+                _savedStarts = Arrays.copyOf(_savedStarts, _savedCount * 2);
+                _saved = Arrays.copyOf(_saved, _savedCount * 2);
+            }
+            System.arraycopy(_savedStarts, index, _savedStarts, index + 1, _savedCount - index);
+            System.arraycopy(_saved, index, _saved, index + 1, _savedCount - index);
+            _savedStarts[index] = start;
+            _saved[index] = chars;
+            _savedCount++;
+        }
+
+        /**
+         * @return The index of the last span starting at or before real,
+         *          or -1 if there is none
+         */
+        private int floorSaved(int real) {
+            int low = 0;
+            int high = _savedCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (_savedStarts[mid] <= real) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * Copies [start, end) of _contents as the snapshot sees it, the
+         * range does not cross the gap
+         */
+        private void copyReal(int start, int end, char[] dst, int dstBegin) {
+            int i = Math.max(floorSaved(start), 0);
+            while (start < end) {
+                while (i < _savedCount && _savedStarts[i] + _saved[i].length <= start) {
+                    i++;
+                }
+
+                int next;
+                if (i < _savedCount && _savedStarts[i] <= start) {
+                    next = Math.min(end, _savedStarts[i] + _saved[i].length);
+                    System.arraycopy(_saved[i], start - _savedStarts[i], 
+                                     dst, dstBegin, next - start);
+                } else {
+                    next = i < _savedCount ? Math.min(end, _savedStarts[i]) : end;
+                    System.arraycopy(_contents, start, dst, dstBegin, next - start);
+                }
+                dstBegin += next - start;
+                start = next;
+            }
+        }
+
+        @Override
+        public synchronized void release() {
+            if (!_released) {
+                _released = true;
+                _buffer.releaseSnapshot(this);
+            }
+        }
+    }
+
+    /**
+     * Limits the undo history to maxEntries actions and about maxBytes of
+     * recorded text. The oldest groups are dropped first, the newest group
+     * is always kept.
+     */
+    public void setUndoLimits(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 0) {
+            throw new IllegalArgumentException("invalid undo limits");
+        }
+        long stamp = _lock.writeLock();
+        try {
+            _undoStack.setLimits(maxEntries, maxBytes);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Deflates the older undo records, for long sessions on devices with
+     * little memory. Undo and redo of old edits get slower.
+     */
+    public void setUndoCompression(boolean compress) {
+        long stamp = _lock.writeLock();
+        try {
+            _undoStack.setCompression(compress);
+        } finally {
+            _lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return The estimated heap used by the undo history, in bytes
+     */
+    public long getUndoMemoryBytes() {
+        long stamp = _lock.readLock();
+        try {
+            return _undoStack.getMemoryBytes();
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The number of actions kept for undo and redo
+     */
+    public int getUndoCount() {
+        long stamp = _lock.readLock();
+        try {
+            return _undoStack.size();
+        } finally {
+            _lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The undo history is a ring buffer of actions, the oldest one at
+     * _head. Every access is O(1), and once a limit is reached pushing an
+     * action evicts the oldest groups, so the cost of an edit does not
+     * grow with the length of the session.
+     *
+     * The text of the actions is recorded in a TextArena, an action only
+     * keeps the handle of its record.
+     */
     class UndoStack {
+        /* estimated bytes of an action object */
+        private static final int ACTION_BYTES = 48;
+
         private boolean _isBatchEdit;
         /* for grouping batch operations */
         private int _groupId;
@@ -562,7 +1371,34 @@ public class GapBuffer implements CharSequence {
         /* timestamp for the previous edit operation */
         private long _lastEditTime;
 
-        private LinkedList<Action> _stack = new LinkedList<>();
+        private Action[] _actions = new Action[64];
+        /* ring position of the oldest action */
+        private int _head;
+        private int _size;
+
+        private int _maxEntries = 10000;
+        private long _maxBytes = 16L * 1024 * 1024;
+
+        private final TextArena _arena = new TextArena();
+
+        /**
+         * Gets the action at index, 0 being the oldest one
+         */
+        private Action get(int index) {
+            int position = _head + index;
+            if (position >= _actions.length) {
+                position -= _actions.length;
+            }
+            return _actions[position];
+        }
+
+        private void set(int index, Action action) {
+            int position = _head + index;
+            if (position >= _actions.length) {
+                position -= _actions.length;
+            }
+            _actions[position] = action;
+        }
 
         /**
          * Undo the previous insert/delete operation
@@ -572,10 +1408,10 @@ public class GapBuffer implements CharSequence {
          */
         public int undo() {
             if (canUndo()) {
-                Action lastUndo = _stack.get(_top - 1);
+                Action lastUndo = get(_top - 1);
                 int group = lastUndo._group;
                 do {
-                    Action action = _stack.get(_top - 1);
+                    Action action = get(_top - 1);
                     if (action._group != group) {
                         break;
                     }
@@ -584,6 +1420,8 @@ public class GapBuffer implements CharSequence {
                     action.undo();
                     _top--;
                 } while(canUndo());
+                // undo may have recorded lazy data
+                trimToLimits();
                 return lastUndo.findUndoPosition();
             }
             return -1;
@@ -597,10 +1435,10 @@ public class GapBuffer implements CharSequence {
          */
         public int redo() {
             if (canRedo()) {
-                Action lastRedo = _stack.get(_top);
+                Action lastRedo = get(_top);
                 int group = lastRedo._group;
                 do {
-                    Action action = _stack.get(_top);
+                    Action action = get(_top);
                     if (action._group != group) {
                         break;
                     }
@@ -625,13 +1463,17 @@ public class GapBuffer implements CharSequence {
             boolean mergeSuccess = false;
 
             if (canUndo()) {
-                Action action = _stack.get(_top - 1);
-
-                if (action instanceof InsertAction
-                    && action.merge(start, end, time)) {
-                    mergeSuccess = true;
-                } else {
-                    action.recordData();
+                Action action = get(_top - 1);
+
+                // an action with recorded data is complete and may
+                // already refer to an older state of the text
+                if (!action._recorded) {
+                    if (action instanceof InsertAction
+                        && action.merge(start, end, time)) {
+                        mergeSuccess = true;
+                    } else {
+                        action.recordData();
+                    }
                 }
             }
 
@@ -653,13 +1495,17 @@ public class GapBuffer implements CharSequence {
             boolean mergeSuccess = false;
 
             if (canUndo()) {
-                Action action = _stack.get(_top - 1);
-
-                if (action instanceof DeleteAction
-                    && action.merge(start, end, time)) {
-                    mergeSuccess = true;
-                } else {
-                    action.recordData();
+                Action action = get(_top - 1);
+
+                // an action with recorded data is complete and may
+                // already refer to an older state of the text
+                if (!action._recorded) {
+                    if (action instanceof DeleteAction
+                        && action.merge(start, end, time)) {
+                        mergeSuccess = true;
+                    } else {
+                        action.recordData();
+                    }
                 }
             }
 
@@ -673,24 +1519,111 @@ public class GapBuffer implements CharSequence {
             _lastEditTime = time;
         }
 
+        /**
+         * Records a replacement of count ranges as an action of its own.
+         * Should be called before the replacement is actually done.
+         */
+        public void captureReplaceAll(int[] starts, int[] removed, int count, char[] text) {
+            recordPending();
+            push(new ReplaceAllAction(starts, removed, count, text, _groupId));
+            _groupId++;
+            _lastEditTime = -1;
+        }
+
+        /**
+         * Records the data of the last action now instead of lazily, because
+         * the gap that still holds it is about to be released
+         */
+        public void recordPending() {
+            if (canUndo()) {
+                Action action = get(_top - 1);
+                if (!action._recorded) {
+                    action.recordData();
+                }
+            }
+        }
+
         private void push(Action action) {
             trimStack();
+            if (_size == _actions.length) {
+                grow();
+            }
+            set(_size++, action);
             _top++;
-            _stack.add(action);
+            trimToLimits();
+        }
+
+        private void grow() {
+            Action[] actions = new Action[_actions.length * 2];
+            for (int i = 0; i < _size; ++i) {
+                actions[i] = get(i);
+            }
+            _actions = actions;
+            _head = 0;
         }
 
+        /**
+         * Drops the redo entries
+         */
         private void trimStack() {
-            while (_stack.size() > _top) {
-                _stack.removeLast();
+            while (_size > _top) {
+                discard(get(--_size));
+                set(_size, null);
+            }
+        }
+
+        /**
+         * Evicts the oldest groups until the history fits its limits
+         */
+        private void trimToLimits() {
+            // only groups that can be undone are evicted, redo needs the older ones
+            while (_top > 0 && (_size > _maxEntries || getMemoryBytes() > _maxBytes)) {
+                int group = get(0)._group;
+                if (group == get(_size - 1)._group) {
+                    // never drop the newest group
+                    break;
+                }
+
+                do {
+                    discard(get(0));
+                    set(0, null);
+                    _head = _head + 1 == _actions.length ? 0 : _head + 1;
+                    _size--;
+                    _top--;
+                } while (_top > 0 && get(0)._group == group);
+            }
+        }
+
+        public void setLimits(int maxEntries, long maxBytes) {
+            _maxEntries = maxEntries;
+            _maxBytes = maxBytes;
+            trimToLimits();
+        }
+
+        private void discard(Action action) {
+            if (action._recorded) {
+                action.release();
             }
         }
 
+        public void setCompression(boolean compress) {
+            _arena.setCompression(compress);
+        }
+
+        public long getMemoryBytes() {
+            return (long) _size * ACTION_BYTES + _arena.getMemoryBytes();
+        }
+
+        public int size() {
+            return _size;
+        }
+
         public final boolean canUndo() {
             return _top > 0;
         }
 
         public final boolean canRedo() {
-            return _top < _stack.size();
+            return _top < _size;
         }
 
         public boolean isBatchEdit() {
@@ -711,8 +1644,10 @@ public class GapBuffer implements CharSequence {
             public int _start;
             /* End position of the edit */
             public int _end;
-            /* Contents of the affected segment */
-            public String _data;
+            /* Whether the affected text was recorded in the arena */
+            public boolean _recorded;
+            /* Arena handle of the affected text */
+            public long _handle;
             /* Group ID. Commands of the same group are undo/redo as a unit */
             public int _group;
             /* 750ms in nanoseconds */
@@ -720,11 +1655,35 @@ public class GapBuffer implements CharSequence {
 
             public abstract void undo();
             public abstract void redo();
-            /* Populates _data with the affected text */
+            /* Records the affected text in the arena */
             public abstract void recordData();
             public abstract int findUndoPosition();
             public abstract int findRedoPosition();
 
+            /**
+             * Reserves the arena record of the affected text
+             *
+             * @return The array to copy the text to, at recordOffset()
+             */
+            protected char[] allocateRecord() {
+                _handle = _arena.allocate(_end - _start);
+                _recorded = true;
+                return _arena.array(_handle);
+            }
+
+            protected int recordOffset() {
+                return TextArena.offset(_handle);
+            }
+
+            protected void insertRecord() {
+                GapBuffer.this.insertRecord(_start, _arena, _handle, _end - _start);
+            }
+
+            /* Frees the recorded text */
+            public void release() {
+                _arena.release(_handle);
+            }
+
             /**
              * Attempts to merge in an edit. This will only be successful if the new
              * edit is continuous. See {@link UndoStack} for the requirements
@@ -769,25 +1728,23 @@ public class GapBuffer implements CharSequence {
 
             @Override
             public void recordData() {
-                //TODO handle memory allocation failure
-                _data = substring(_start, _end);
+                copyChars(_start, _end, allocateRecord(), recordOffset());
             }
 
             @Override
             public void undo() {
-                if (_data == null) {
+                if (!_recorded) {
                     recordData();
                     shiftGapStart(-(_end - _start));
                 } else {
                     //dummy timestamp of 0
-                    delete(_start, _end, false, 0);
+                    deleteChars(_start, _end, false, 0);
                 }
             }
 
             @Override
             public void redo() {
-                //dummy timestamp of 0
-                insert(_start, _data, false, 0);
+                insertRecord();
             }
 
             @Override
@@ -802,6 +1759,110 @@ public class GapBuffer implements CharSequence {
         }
 
 
+        /**
+         * Corresponds to replacing many ranges with the same text. Only
+         * the positions and the replaced text are kept, the text is
+         * recorded right away since the splice drops the gap.
+         */
+        private class ReplaceAllAction extends Action {
+            private final int[] _starts;
+            private final int[] _removed;
+            private final int _count;
+            private final int _insertLength;
+            /* Arena handle of the inserted text, _handle holds the removed text */
+            private final long _insertHandle;
+
+            public ReplaceAllAction(int[] starts, int[] removed, int count, 
+                                    char[] text, int group) {
+                _starts = Arrays.copyOf(starts, count);
+                _removed = Arrays.copyOf(removed, count);
+                _count = count;
+                _insertLength = text.length;
+                _group = group;
+
+                int total = 0;
+                for (int i = 0; i < count; ++i) {
+                    total += removed[i];
+                }
+                _handle = _arena.allocate(total);
+                char[] record = _arena.array(_handle);
+                int offset = TextArena.offset(_handle);
+                for (int i = 0; i < count; ++i) {
+                    copyChars(starts[i], starts[i] + removed[i], record, offset);
+                    offset += removed[i];
+                }
+
+                _insertHandle = _arena.allocate(_insertLength);
+                System.arraycopy(text, 0, _arena.array(_insertHandle), 
+                                 TextArena.offset(_insertHandle), _insertLength);
+                _recorded = true;
+
+                _start = starts[0];
+                _end = starts[count - 1] + removed[count - 1];
+            }
+
+            @Override
+            public boolean merge(int start, int end, long time) {
+                return false;
+            }
+
+            @Override
+            public void recordData() {
+                // recorded when captured
+            }
+
+            @Override
+            public void undo() {
+                // the ranges as they are after the replacement
+                int[] starts = new int[_count];
+                int[] inserted = new int[_count];
+                int total = 0;
+                int delta = 0;
+                for (int i = 0; i < _count; ++i) {
+                    starts[i] = _starts[i] + delta;
+                    delta += _insertLength - _removed[i];
+                    total += _removed[i];
+                }
+                Arrays.fill(inserted, 0, _count, _insertLength);
+
+                char[] text = new char[total];
+                _arena.getChars(_handle, total, text, 0);
+                splice(_count, starts, inserted, text, _removed, 0);
+            }
+
+            @Override
+            public void redo() {
+                char[] text = new char[_insertLength];
+                _arena.getChars(_insertHandle, _insertLength, text, 0);
+                splice(_count, _starts, _removed, text, null, _insertLength);
+            }
+
+            @Override
+            public void release() {
+                _arena.release(_handle);
+                _arena.release(_insertHandle);
+            }
+
+            @Override
+            public int findRedoPosition() {
+                // the end of the last replacement
+                return _end + _count * _insertLength - sumRemoved();
+            }
+
+            @Override
+            public int findUndoPosition() {
+                return _end;
+            }
+
+            private int sumRemoved() {
+                int total = 0;
+                for (int i = 0; i < _count; ++i) {
+                    total += _removed[i];
+                }
+                return total;
+            }
+        }
+
         private class DeleteAction extends Action {
             /**
              * Corresponds to an deletion of text of size length starting from
@@ -830,25 +1891,25 @@ public class GapBuffer implements CharSequence {
 
             @Override
             public void recordData() {
-                //TODO handle memory allocation failure
-                _data = new String(gapSubSequence(_end - _start));
+                // the deleted text is still in the gap
+                System.arraycopy(_contents, _gapStartIndex, allocateRecord(), 
+                                 recordOffset(), _end - _start);
             }
 
             @Override
             public void undo() {
-                if (_data == null) {
+                if (!_recorded) {
                     recordData();
                     shiftGapStart(_end - _start);
                 } else {
-                    //dummy timestamp of 0
-                    insert(_start, _data, false, 0);
+                    insertRecord();
                 }
             }
 
             @Override
             public void redo() {
                 //dummy timestamp of 0
-                delete(_start, _end, false, 0);
+                deleteChars(_start, _end, false, 0);
             }
 
             @Override
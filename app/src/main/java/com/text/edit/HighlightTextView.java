@@ -8,12 +8,13 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.os.Build;
 import android.graphics.drawable.Drawable;
 import android.text.InputType;
 import android.text.TextPaint;
 import android.util.AttributeSet;
-import android.util.Pair;
 import android.view.GestureDetector;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -25,17 +26,14 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.OverScroller;
-import java.util.ArrayList;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.Collections;
 
 
 public class HighlightTextView extends View {
 
     private Paint mPaint;
     private TextPaint mTextPaint;
-    private GapBuffer mGapBuffer;
+    private TextStorage mBuffer;
 
     // cursor and select handle drawable resources
     private Drawable mDrawableCursorRes;
@@ -62,23 +60,85 @@ public class HighlightTextView extends View {
     private GestureListener mGestureListener;
     private ScaleGestureDetector mScaleGestureDetector;
     private ClipboardManager mClipboard;
-    private ArrayList<Pair> mReplaceList;
+    // find results, shifted by every edit of mBuffer
+    private MatchStore mMatches;
+    // buffer version the find results belong to
+    private long mFindVersion;
+    private TextSearcher mSearcher;
+    // id of the running search, 0 if none
+    private int mSearchId;
+    // the last find query, one of them is set
+    private Pattern mFindPattern;
+    private LiteralSearch mFindLiteral;
+    // whether the background search went through the whole text
+    private boolean mFindDone;
+    // the replacement of a replaceAll() waiting for the search to finish
+    private String mPendingReplace;
+    // whether a MappedTextStorage is still indexing, and more text may
+    // come after the part a find went through
+    private boolean mIndexing;
+    // text edited since the last find, see rescanMatches()
+    private DirtyRanges mDirty;
+    // the text changed by an undo or redo, to redraw only its lines
+    private DirtyRanges mUndoRanges;
+    private OnFindListener mFindListener;
+    // token spans of the lines, null if the text is drawn plain
+    private SyntaxHighlighter mHighlighter;
+    private JobScheduler mHighlightScheduler;
+    // the running lexing job and the buffer version it lexes
+    private SyntaxHighlighter.Job mHighlightJob;
+    private long mHighlightVersion;
+    // last line drawn, 0-based, lexed before the lines below
+    private int mHighlightLastLine;
+    // colors by Tokenizer token type
+    private int[] mTokenColors = {
+        Color.BLACK, 0xFF7F0055, 0xFF005F87, 0xFF2A00FF, 0xFF098658, 0xFF3F7F5F
+    };
 
     private boolean mCursorVisiable = true;
     private boolean mHandleMiddleVisable = false;
     private boolean isEditedMode = true;
     private boolean isSelectMode = false;
 
+    // reused by every frame, so drawing does not allocate
+    private Rect mClipBounds = new Rect();
+    // line height, line number width and line count, kept between changes
+    private LayoutMetrics mMetrics;
+    // chars of the line being drawn
+    private char[] mLineChars = new char[256];
+    // digits of the line number being drawn, right aligned
+    private char[] mLineNumberChars = new char[10];
+    // widths of the lines and char positions, measured once per edit
+    private LineWidthCache mWidths;
+    // recorded tiles of lines, null if lines are drawn every frame. A
+    // hardware canvas redraws the whole view on any invalidate, the
+    // unchanged lines are then played back instead of drawn again
+    private LineTileCache mTiles;
+    // measures the lines not drawn yet, for the horizontal scroll range
+    private JobScheduler mMeasureScheduler;
+    private LineWidthCache.Job mMeasureJob;
+    private long mMeasureVersion;
+
     private String mDefaultText;
+    // inserted by the enter key, follows the loaded file
+    private String mLineSeparator = "\n";
     private long mLastScroll;
     // record last single tap time
     private long mLastTapTime;
     // left margin for draw text
     private final int SPACEING = 100;
+    // lines longer than this are only drawn where they are in view
+    private static final int CLIP_CHARS = 512;
     // animation duration 250ms
     private final int DEFAULT_DURATION = 250;
     // cursor blink BLINK_TIMEOUT 500ms
     private final int BLINK_TIMEOUT = 500;
+    // re-find in edited text 100ms after typing stops
+    private final int RESCAN_DELAY = 100;
+    // context re-found around an edit on a very long line
+    private final int RESCAN_CONTEXT = 4096;
+    // edited chars beyond which the whole text is searched again
+    private final int RESCAN_LIMIT = 256 * 1024;
 
     private final String TAG = this.getClass().getSimpleName();
 
@@ -98,7 +158,12 @@ public class HighlightTextView extends View {
     }
 
     private void initView(Context context) {
-        mGapBuffer = new GapBuffer();
+        mBuffer = new GapBuffer();
+        mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        mMetrics = new LayoutMetrics(mTextPaint, SPACEING);
+        mMetrics.setStorage(mBuffer, true);
+        mMetrics.setPaddingLeft(getPaddingLeft());
+        mBuffer.addOnEditListener(mMetrics);
         mCursorLine = getLineCount();
         
         screenWidth = ScreenUtils.getScreenWidth(context);
@@ -136,7 +201,10 @@ public class HighlightTextView extends View {
         //mGestureDetector.setIsLongpressEnabled(false);
         mScaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureListener());
 
-        mTextPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        mWidths = new LineWidthCache(mTextPaint);
+        mTiles = new LineTileCache(this::drawLines);
+        mMeasureScheduler = new JobScheduler("LineMeasurer");
+        attachWidths();
         setTextSize(ScreenUtils.dip2px(context, 18));
         mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mPaint.setColor(Color.GREEN);
@@ -144,10 +212,15 @@ public class HighlightTextView extends View {
 
         mScroller = new OverScroller(context);
         mClipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
-        mReplaceList = new ArrayList<>();
+        mMatches = new MatchStore();
+        mBuffer.addOnEditListener(mMatches);
+        mDirty = new DirtyRanges();
+        mBuffer.addOnEditListener(mDirty);
+        mUndoRanges = new DirtyRanges();
+        mSearcher = new TextSearcher();
+        mHighlightScheduler = new JobScheduler("Highlighter");
 
         mDefaultText = getResources().getString(R.string.default_text);
-        spaceWidth = (int) mTextPaint.measureText(" ");
 
         requestFocus();
         setFocusable(true);
@@ -165,24 +238,123 @@ public class HighlightTextView extends View {
             if(System.currentTimeMillis() - mLastTapTime >= 5 * BLINK_TIMEOUT) {
                 mHandleMiddleVisable = false;
             }
-            postInvalidate();
+            invalidateCursor();
         }
     };
 
-    public void setBuffer(GapBuffer buffer) {
-        mGapBuffer = buffer;
+    // GapBuffer suits localized typing, PieceTable suits
+    // replace-all and edits scattered over the document
+    public void setBuffer(TextStorage buffer) {
+        mBuffer.removeOnEditListener(mMatches);
+        mBuffer.removeOnEditListener(mDirty);
+        clearHighlighter();
+        mBuffer.removeOnEditListener(mWidths);
+        mBuffer.removeOnEditListener(mMetrics);
+        mBuffer = buffer;
+        mBuffer.addOnEditListener(mMatches);
+        mBuffer.addOnEditListener(mDirty);
+        attachMetrics();
+        attachWidths();
+        isSelectMode = false;
+        clearFind();
+
+        mCursorIndex = 0;
+        mCursorLine = 1;
+        adjustCursorPosition();
+        scrollTo(0, 0);
         invalidate();
     }
     
-    public GapBuffer getBuffer() {
-        return this.mGapBuffer;
+    public TextStorage getBuffer() {
+        return this.mBuffer;
     }
 
     public void setText(String text) {
-        mGapBuffer = new GapBuffer(text);
+        mBuffer.removeOnEditListener(mMatches);
+        mBuffer.removeOnEditListener(mDirty);
+        clearHighlighter();
+        mBuffer.removeOnEditListener(mWidths);
+        mBuffer.removeOnEditListener(mMetrics);
+        mBuffer = new GapBuffer(text);
+        mBuffer.addOnEditListener(mMatches);
+        mBuffer.addOnEditListener(mDirty);
+        attachMetrics();
+        attachWidths();
+        clearFind();
+        invalidate();
+    }
+
+    // keep the drawn lines recorded in tiles, so scrolling, the cursor
+    // blink and typing play them back instead of drawing every line
+    // again. On by default
+    public void setRenderCacheEnabled(boolean enabled) {
+        mTiles = enabled ? new LineTileCache(this::drawLines) : null;
+        invalidate();
+    }
+
+    // highlights the text with tokenizer, or draws it plain if null.
+    // Set it again after setBuffer() and setText(), which drop it
+    public void setTokenizer(Tokenizer tokenizer) {
+        clearHighlighter();
+        if(tokenizer != null) {
+            mHighlighter = new SyntaxHighlighter(tokenizer);
+            mHighlighter.reset(mBuffer);
+            mBuffer.addOnEditListener(mHighlighter);
+        }
         invalidate();
     }
 
+    private void clearHighlighter() {
+        mHighlightScheduler.cancel();
+        mHighlightJob = null;
+        if(mHighlighter != null) {
+            mBuffer.removeOnEditListener(mHighlighter);
+            mHighlighter = null;
+        }
+        // the tiles were drawn in its colors, or are of the text replaced
+        if(mTiles != null)
+            mTiles.clear();
+    }
+
+    // lex the lines up to lastLine in the background, then the rest
+    private void scheduleHighlight(int lastLine) {
+        mHighlightLastLine = lastLine;
+        if(mHighlighter == null)
+            return;
+        if(mHighlightJob != null && mHighlightVersion == mBuffer.getVersion())
+            return; // still lexing the current text
+
+        mHighlightJob = mHighlighter.createJob(lastLine);
+        if(mHighlightJob == null) {
+            mHighlightScheduler.cancel();
+            return;
+        }
+        mHighlightVersion = mBuffer.getVersion();
+        mHighlightScheduler.start(mBuffer, mHighlightJob, mHighlightListener);
+    }
+
+    private OnJobListener mHighlightListener = new OnJobListener() {
+        @Override
+        public void onJobDone(final TextJob job) {
+            post(() -> applyHighlight((SyntaxHighlighter.Job) job));
+        }
+    };
+
+    // store the spans lexed in the background
+    private void applyHighlight(SyntaxHighlighter.Job job) {
+        if(job != mHighlightJob || mHighlightVersion != mBuffer.getVersion())
+            return; // cancelled, or lexed text that was edited since
+
+        mHighlightJob = null;
+        mHighlighter.apply(job);
+        if(mTiles != null)
+            mTiles.drop(job.getFirstLine() + 1, job.getFirstLine() + job.getLexedLines());
+        // lines below the visible ones are only filled in
+        if(job.getFirstLine() <= mHighlightLastLine)
+            invalidateLines(job.getFirstLine() + 1, job.getFirstLine() + job.getLexedLines());
+        scheduleHighlight(mHighlightLastLine);
+    }
+
     // the text size unit is px
     public void setTextSize(float px) {
         // min text size 10dp
@@ -194,6 +366,7 @@ public class HighlightTextView extends View {
         if(px > max) px = max;
 
         mTextPaint.setTextSize(px);
+        updateFontMetrics();
         
         adjustCursorPosition();
         if(isSelectMode)
@@ -202,6 +375,10 @@ public class HighlightTextView extends View {
         postInvalidate();
     }
 
+    public void setLineSeparator(String separator) {
+        mLineSeparator = separator;
+    }
+
     public void setEditedMode(boolean editMode) {
         isEditedMode = editMode;
     }
@@ -212,14 +389,99 @@ public class HighlightTextView extends View {
 
     public void setTypeface(Typeface typeface) {
         mTextPaint.setTypeface(typeface);
+        updateFontMetrics();
+    }
+
+    // measure what every frame needs once per font change
+    private void updateFontMetrics() {
+        mMetrics.updateFont();
+        spaceWidth = mMetrics.getSpaceWidth();
+        if(mTiles != null)
+            mTiles.clear();
+        mWidths.invalidate();
+        cancelMeasure();
+    }
+
+    // mapped text is never edited, but its line count grows while its
+    // lines are indexed
+    private void attachMetrics() {
+        boolean tracked = !(mBuffer instanceof MappedTextStorage);
+        mIndexing = !tracked && !((MappedTextStorage) mBuffer).isIndexed();
+        mMetrics.setStorage(mBuffer, tracked);
+        if(tracked)
+            mBuffer.addOnEditListener(mMetrics);
+    }
+
+    // read-only mapped text is never edited, and too large to track
+    private void attachWidths() {
+        cancelMeasure();
+        boolean tracked = !(mBuffer instanceof MappedTextStorage);
+        mWidths.setStorage(mBuffer, tracked);
+        if(tracked)
+            mBuffer.addOnEditListener(mWidths);
+    }
+
+    // more of a MappedTextStorage was indexed, which appends text without
+    // an edit or a new version. The last line may have grown and the line
+    // numbers got wider, so the tiles are dropped, and a find is run again
+    // once indexing is complete to cover the whole text
+    public void onTextAppended(boolean complete) {
+        mIndexing = !complete;
+        if(mTiles != null)
+            mTiles.clear();
+        mWidths.invalidate();
+        if(complete && (mFindPattern != null || mFindLiteral != null))
+            restartFind();
+        postInvalidate();
+    }
+
+    private void cancelMeasure() {
+        mMeasureScheduler.cancel();
+        mMeasureJob = null;
+    }
+
+    // measure the lines not measured yet in the background
+    private void scheduleMeasure() {
+        if(mMeasureJob != null && mMeasureVersion == mBuffer.getVersion())
+            return; // still measuring the current text
+
+        mMeasureJob = mWidths.createJob();
+        if(mMeasureJob == null) {
+            mMeasureScheduler.cancel();
+            return;
+        }
+        mMeasureVersion = mBuffer.getVersion();
+        mMeasureScheduler.start(mBuffer, mMeasureJob, mMeasureListener);
+    }
+
+    private OnJobListener mMeasureListener = new OnJobListener() {
+        @Override
+        public void onJobDone(final TextJob job) {
+            post(() -> applyMeasure((LineWidthCache.Job) job));
+        }
+    };
+
+    // store the widths measured in the background
+    private void applyMeasure(LineWidthCache.Job job) {
+        if(job != mMeasureJob || mMeasureVersion != mBuffer.getVersion())
+            return; // cancelled, or measured text that was edited since
+
+        mMeasureJob = null;
+        mWidths.apply(job);
+        scheduleMeasure();
     }
 
     public void setOnTextChangedListener(OnTextChangedListener listener) {
         mTextListener = listener;
     }
 
+    // notified with the match count while find() runs
+    public void setOnFindListener(OnFindListener listener) {
+        mFindListener = listener;
+    }
+
     private int getLeftSpace() {
-        return getPaddingLeft() + getLineNumberWidth() + SPACEING;
+        return mMetrics.getLeftSpace();
     }
 
     public int measureText(String text) {
@@ -227,37 +489,44 @@ public class HighlightTextView extends View {
     }
     
     private int getLineHeight() {
-        TextPaint.FontMetricsInt metrics = mTextPaint.getFontMetricsInt();
-        return metrics.bottom - metrics.top;
+        return mMetrics.getLineHeight();
     }
 
     private int getLineStart(int lineNumber) {
-        return mGapBuffer.getLineOffset(lineNumber);
+        return mBuffer.getLineOffset(lineNumber);
     }
     
     private int getOffsetLine(int offset) {
-        return mGapBuffer.findLineNumber(offset);
+        return mBuffer.findLineNumber(offset);
     }
     
     public int getLineCount() {
-        return mGapBuffer.getLineCount();
+        return mMetrics.getLineCount();
     }
 
     private int getLineNumberWidth() {
-        return measureText(Integer.toString(getLineCount()));
+        return mMetrics.getGutterWidth();
     }
 
     public String getLine(int lineNumber) {
-        return mGapBuffer.getLine(lineNumber);
+        return mBuffer.getLine(lineNumber);
     }
     
     private int getLineWidth(int lineNumber) {
-        return measureText(getLine(lineNumber));
+        return mWidths.getWidth(lineNumber);
+    }
+
+    // x of offset from the start of its line
+    private int getOffsetX(int lineNumber, int offset) {
+        return mWidths.getAdvance(lineNumber, offset - getLineStart(lineNumber));
     }
 
     // Get the maximum scrollable width
     public int getMaxScrollX() {
-        return Math.max(0, getLeftSpace() + lineWidth + spaceWidth * 4 - getWidth());
+        // the widest line of the document, or of the lines drawn so far
+        // for text whose lines are not tracked
+        int width = Math.max(lineWidth, mWidths.getMaxWidth());
+        return Math.max(0, getLeftSpace() + width + spaceWidth * 4 - getWidth());
     }
 
     // Get the maximum scrollable height
@@ -276,6 +545,10 @@ public class HighlightTextView extends View {
             // Nothing to do.
             return;
         }
+        if(dx == 0 && dy == 0) {
+            // Nothing to do, and nothing to redraw.
+            return;
+        }
         long duration = AnimationUtils.currentAnimationTimeMillis() - mLastScroll;
         if(duration > DEFAULT_DURATION) {
             mScroller.startScroll(getScrollX(), getScrollY(), dx, dy);
@@ -392,25 +665,30 @@ public class HighlightTextView extends View {
 
     // draw match text background
     public void drawMatchText(Canvas canvas) {
-        if(isSelectMode) {
-            int size = mReplaceList.size();
+        if(isSelectMode && !mMatches.isEmpty()) {
             int left = getLeftSpace();
 
-            for(int i=0; i < size; ++i) {
-                int start = (Integer) mReplaceList.get(i).first;
-                int end = (Integer) mReplaceList.get(i).second;
+            // only the matches on the visible lines
+            int firstLine = Math.min(getScrollY() / getLineHeight() + 1, getLineCount());
+            int lastLine = (getScrollY() + getHeight()) / getLineHeight() + 1;
+            int from = getLineStart(firstLine);
+            int to = lastLine < getLineCount() ? getLineStart(lastLine + 1) : mBuffer.length();
+
+            for(int i = mMatches.firstVisible(from); i != -1; i = mMatches.next(i)) {
+                int start = mMatches.getStart(i);
+                int end = mMatches.getEnd(i);
+                if(start > to) break;
 
                 if(start == selectionStart && end == selectionEnd)
                     mPaint.setColor(Color.LTGRAY);
                 else
                     mPaint.setColor(Color.CYAN);
 
-                int line = mGapBuffer.findLineNumber(start);
-                int lineStart = getLineStart(line);
+                int line = mBuffer.findLineNumber(start);
 
-                canvas.drawRect(left + measureText(mGapBuffer.substring(lineStart, start)),
+                canvas.drawRect(left + getOffsetX(line, start),
                                 (line - 1) * getLineHeight(),
-                                left + measureText(mGapBuffer.substring(lineStart, end)),
+                                left + getOffsetX(line, end),
                                 line * getLineHeight(),
                                 mPaint
                                 );
@@ -452,36 +730,115 @@ public class HighlightTextView extends View {
 
     // draw content text
     public void drawEditableText(Canvas canvas) {
-        int startLine = Math.max(canvas.getClipBounds().top / getLineHeight(), 1);
-        int endLine = Math.min(canvas.getClipBounds().bottom / getLineHeight() + 1, getLineCount());
+        canvas.getClipBounds(mClipBounds);
+        int startLine = Math.max(mClipBounds.top / getLineHeight(), 1);
+        int endLine = Math.min(mClipBounds.bottom / getLineHeight() + 1, getLineCount());
 
         // the text line width
         int lineNumberWidth = getLineNumberWidth();
         lineWidth = getWidth() - lineNumberWidth;
-        
-        // draw text line[start..end]
+
+        // lex the lines edited or scrolled into view, they are drawn
+        // plain until their spans come in
+        scheduleHighlight(endLine - 1);
+
+        // pictures are played back on a hardware canvas since Android M
+        int width;
+        if(mTiles != null && (!canvas.isHardwareAccelerated()
+           || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)) {
+            width = mTiles.draw(canvas, startLine, endLine, getLineCount(), getLineHeight(),
+                                mBuffer.getVersion(), mClipBounds.left, mClipBounds.right);
+        } else {
+            width = drawLines(canvas, startLine, endLine, mClipBounds.left, mClipBounds.right);
+        }
+        lineWidth = Math.max(width, lineWidth);
+
+        // lines edited off screen or never drawn
+        scheduleMeasure();
+    }
+
+    // draw text line[start..end], long lines only where they are in
+    // [left, right), return the width of the widest one
+    private int drawLines(Canvas canvas, int startLine, int endLine, int left, int right) {
+        int lineNumberWidth = getLineNumberWidth();
+        int width = 0;
         for(int i=startLine; i <= endLine; ++i) {
 
             int paintX = getPaddingLeft();
             // baseline
-            int paintY =  i * getLineHeight() - (int)mTextPaint.descent();
+            int paintY =  i * getLineHeight() - mMetrics.getDescent();
 
             // draw line number
             mTextPaint.setColor(Color.GRAY);
-            canvas.drawText(String.valueOf(i), paintX, paintY, mTextPaint);
+            int digits = LayoutMetrics.formatLineNumber(i, mLineNumberChars);
+            canvas.drawText(mLineNumberChars, digits, mLineNumberChars.length - digits, 
+                            paintX, paintY, mTextPaint);
 
             // draw vertical line
             canvas.drawLine(lineNumberWidth + SPACEING / 2,  (i - 1) * getLineHeight(), lineNumberWidth + SPACEING / 2, i * getLineHeight(), mPaint);
 
             // draw content text
             paintX += (lineNumberWidth + SPACEING);
-            mTextPaint.setColor(Color.BLACK);
 
-            String text = getLine(i);
-            lineWidth = Math.max(measureText(text), lineWidth);
-            
-            canvas.drawText(text, paintX, paintY, mTextPaint);
+            // the columns in view of a long line, a char more on each side
+            int length = mBuffer.getLineLength(i);
+            int first = 0;
+            float textX = paintX;
+            if(length > CLIP_CHARS) {
+                first = Math.max(0, mWidths.getColumn(i, left - paintX) - 1);
+                int last = Math.min(length, mWidths.getColumn(i, right - paintX) + 1);
+                textX += mWidths.getX(i, first);
+                length = Math.max(0, last - first);
+            }
+
+            // copy them into the reused buffer
+            int start = getLineStart(i) + first;
+            if(length > mLineChars.length)
+                mLineChars = new char[Math.max(length, mLineChars.length * 2)];
+            mBuffer.getChars(start, start + length, mLineChars, 0);
+
+            width = Math.max(getLineWidth(i), width);
+
+            int[] spans = mHighlighter != null ? mHighlighter.getSpans(i - 1) : null;
+            if(spans == null) {
+                mTextPaint.setColor(Color.BLACK);
+                canvas.drawText(mLineChars, 0, length, textX, paintY, mTextPaint);
+            } else {
+                drawSpans(canvas, mLineChars, first, length, spans, textX, paintY);
+            }
+        }
+        return width;
+    }
+
+    // draw the tokens of the line columns [first, first + length), copied
+    // to chars from 0, in their colors
+    private void drawSpans(Canvas canvas, char[] chars, int first, int length, int[] spans, float x, int y) {
+        int last = first + length;
+        for(int k = findSpan(spans, first); k < spans.length; k += 2) {
+            // the spans may cover a \r that getLineLength() leaves out
+            int start = Math.max(spans[k], first);
+            int end = k + 2 < spans.length ? Math.min(spans[k + 2], last) : last;
+            if(start >= last) break;
+            if(start >= end) continue;
+
+            mTextPaint.setColor(mTokenColors[spans[k + 1]]);
+            canvas.drawText(chars, start - first, end - start, x, y, mTextPaint);
+            x += mTextPaint.measureText(chars, start - first, end - start);
+        }
+    }
+
+    // the index in spans of the span the column is in
+    private static int findSpan(int[] spans, int column) {
+        int low = 0;
+        int high = spans.length / 2 - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(spans[mid * 2] <= column)
+                low = mid;
+            else
+                high = mid - 1;
         }
+        return low * 2;
     }
 
     @Override
@@ -544,7 +901,7 @@ public class HighlightTextView extends View {
         if(event.getAction() == KeyEvent.ACTION_DOWN) {
             switch(keyCode) {
             case KeyEvent.KEYCODE_ENTER:
-                insert("\n");
+                insert(mLineSeparator);
                 break;
             case KeyEvent.KEYCODE_DEL:
                 // delete char at cursor index
@@ -559,6 +916,7 @@ public class HighlightTextView extends View {
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         // TODO: Implement this method
         super.onLayout(changed, left, top, right, bottom);
+        mMetrics.setPaddingLeft(getPaddingLeft());
         scrollToVisable();
     }
 
@@ -582,14 +940,66 @@ public class HighlightTextView extends View {
     }
 
     public void onTextChanged() {
+        // the matches a waiting replaceAll() would replace are stale
+        mPendingReplace = null;
         mTextListener.onTextChanged();
+        if(!mDirty.isEmpty()) {
+            removeCallbacks(rescanAction);
+            postDelayed(rescanAction, RESCAN_DELAY);
+        }
+    }
+
+    // redraw the lines [firstLine, lastLine], with the handles below them
+    private void invalidateLines(int firstLine, int lastLine) {
+        int top = getPaddingTop() + (firstLine - 1) * getLineHeight();
+        int bottom = getPaddingTop() + lastLine * getLineHeight()
+            + Math.max(handleMiddleHeight, selectHandleHeight);
+        postInvalidate(getScrollX(), top, getScrollX() + getWidth(), bottom);
+    }
+
+    // redraw the lines from firstLine to the bottom of the view
+    private void invalidateBelow(int firstLine) {
+        int top = getPaddingTop() + (firstLine - 1) * getLineHeight();
+        postInvalidate(getScrollX(), top, getScrollX() + getWidth(), getScrollY() + getHeight());
+    }
+
+    // redraw the cursor and the handle below it
+    private void invalidateCursor() {
+        int x = getPaddingLeft() + mCursorPosX;
+        int half = Math.max(mCursorWidth, handleMiddleWidth);
+        int top = getPaddingTop() + mCursorPosY;
+        postInvalidate(x - half, top, x + half, top + getLineHeight() + handleMiddleHeight);
+    }
+
+    // redraw what an edit of the lines [firstLine, lastLine] changed: those
+    // lines if it kept the line count, all lines below if not, and the
+    // whole view if the line numbers got wider or narrower. The tiles of
+    // the other lines are kept for the new version of the text
+    private void invalidateEdit(int firstLine, int lastLine, int oldLineCount, 
+                                int oldLeftSpace, long oldVersion) {
+        if(getLeftSpace() != oldLeftSpace) {
+            postInvalidate();
+            return;
+        }
+
+        if(getLineCount() != oldLineCount) {
+            if(mTiles != null)
+                mTiles.dropFrom(firstLine);
+            invalidateBelow(firstLine);
+        } else {
+            if(mTiles != null)
+                mTiles.drop(firstLine, lastLine);
+            invalidateLines(firstLine, lastLine);
+        }
+        if(mTiles != null)
+            mTiles.rebase(oldVersion, mBuffer.getVersion());
     }
 
     // Insert text
     private void insert(String text) {
         if(!isEditedMode) return; // nothing to do
         if(isSelectMode) {
-            mGapBuffer.beginBatchEdit();
+            mBuffer.beginBatchEdit();
             delete();
         } 
         
@@ -597,10 +1007,14 @@ public class HighlightTextView extends View {
         mCursorVisiable = true;
         mHandleMiddleVisable = false;
         
-        mGapBuffer.insert(mCursorIndex, text, true);
+        int firstLine = mCursorLine;
+        int lineCount = getLineCount();
+        int leftSpace = getLeftSpace();
+        long version = mBuffer.getVersion();
+        mBuffer.insert(mCursorIndex, text, true);
         
-        if(mGapBuffer.isBatchEdit())
-            mGapBuffer.endBatchEdit();
+        if(mBuffer.isBatchEdit())
+            mBuffer.endBatchEdit();
 
         // calculate the cursor index and line
         int length = text.length();
@@ -610,7 +1024,7 @@ public class HighlightTextView extends View {
         
         onTextChanged();
         scrollToVisable();
-        postInvalidate();
+        invalidateEdit(firstLine, mCursorLine, lineCount, leftSpace, version);
         postDelayed(blinkAction, BLINK_TIMEOUT);
     }
 
@@ -623,13 +1037,24 @@ public class HighlightTextView extends View {
         mCursorVisiable = true;
         mHandleMiddleVisable = false;
         
+        // the selection and the matches are drawn in select mode only
+        boolean wasSelecting = isSelectMode;
+        int lineCount = getLineCount();
+        int leftSpace = getLeftSpace();
+        long version = mBuffer.getVersion();
         if(isSelectMode) {
             isSelectMode = false;
-            mGapBuffer.delete(selectionStart, selectionEnd, true);
+            mBuffer.delete(selectionStart, selectionEnd, true);
             mCursorIndex -= selectionEnd - selectionStart;
         } else {
-            mGapBuffer.delete(mCursorIndex - 1, mCursorIndex, true);
-            mCursorIndex--;
+            int start = mCursorIndex - 1;
+            // delete a \r\n line ending as a whole
+            if(start > 0 && mBuffer.charAt(start) == '\n' 
+               && mBuffer.charAt(start - 1) == '\r') {
+                --start;
+            }
+            mBuffer.delete(start, mCursorIndex, true);
+            mCursorIndex = start;
         }
         
         // calculate cursor index and line
@@ -638,7 +1063,10 @@ public class HighlightTextView extends View {
         
         onTextChanged();
         scrollToVisable();
-        postInvalidate();
+        if(wasSelecting)
+            postInvalidate();
+        else
+            invalidateEdit(mCursorLine, mCursorLine, lineCount, leftSpace, version);
         postDelayed(blinkAction, BLINK_TIMEOUT);
     }
 
@@ -672,8 +1100,8 @@ public class HighlightTextView extends View {
     }
 
     private void scrollToFindPosition(int curr) {
-        int first = (Integer)mReplaceList.get(curr).first;
-        int second = (Integer)mReplaceList.get(curr).second; 
+        int first = mMatches.getStart(curr);
+        int second = mMatches.getEnd(curr);
 
         setCursorPosition(second);
         adjustSelectRange(first, second);
@@ -683,72 +1111,195 @@ public class HighlightTextView extends View {
         postInvalidate();
     }
 
-    // find the current item
-    private int current() {
-        // default return the first item
-        return Collections.binarySearch(mReplaceList, 
-            new Pair<Integer, Integer>(selectionStart, selectionEnd), 
-            (a, b) -> {
-            int result = (int)a.first - (int)b.first;
-            return result == 0 ? (int)a.second - (int)b.second : result;
-        });
-    }
-
     public void prev() {
-        int currIndex = current();
-        int prev = --currIndex;
+        if(mMatches.isEmpty()) return;
+        // the match before the selected one
+        int prev = mMatches.lower(selectionStart);
         if(prev < 0) {
-            prev = mReplaceList.size() - 1;
+            prev = mMatches.lower(Integer.MAX_VALUE);
         }
         scrollToFindPosition(prev);
     }
 
     public void next() {
-        int currIndex = current();
-        int next = ++currIndex;
-        if(next >= mReplaceList.size()) {
-            next = 0;
+        if(mMatches.isEmpty()) return;
+        // the match after the selected one
+        int next = mMatches.ceiling(selectionStart + 1);
+        if(next < 0) {
+            next = mMatches.ceiling(0);
         }
         scrollToFindPosition(next);
     }
 
-    // find text
+    // find text in the background, the matches on screen come first
     public void find(String regex) {
-        if(!mReplaceList.isEmpty())
-            mReplaceList.clear();
+        mFindPattern = Pattern.compile(regex);
+        mFindLiteral = null;
+        restartFind();
+    }
+
+    // find a plain string, much faster than a regex
+    public void findText(String text, boolean ignoreCase) {
+        mFindPattern = null;
+        mFindLiteral = new LiteralSearch(text, ignoreCase);
+        restartFind();
+    }
+
+    // search the whole text for the last query
+    private void restartFind() {
+        cancelFind();
+        mMatches.clear();
+        mDirty.clear();
+        removeCallbacks(rescanAction);
+        mFindDone = false;
+
+        mFindVersion = mBuffer.getVersion();
+        int line = Math.min(getScrollY() / getLineHeight() + 1, getLineCount());
+        int from = getLineStart(line);
+        if(mFindLiteral != null)
+            mSearchId = mSearcher.search(mBuffer, mFindLiteral, from, mSearchListener);
+        else
+            mSearchId = mSearcher.search(mBuffer, mFindPattern, from, mSearchListener);
+    }
+
+    // stop the running find(), its pending matches and replace are dropped
+    private void cancelFind() {
+        mSearcher.cancel();
+        mSearchId = 0;
+        mPendingReplace = null;
+    }
+
+    // forget the query and its matches
+    private void clearFind() {
+        cancelFind();
+        mMatches.clear();
+        mDirty.clear();
+        mFindPattern = null;
+        mFindLiteral = null;
+    }
+
+    private Runnable rescanAction = new Runnable() {
+        @Override
+        public void run() {
+            rescanMatches();
+        }
+    };
+
+    // re-find only around the text edited since the last find
+    private void rescanMatches() {
+        if(mFindPattern == null && mFindLiteral == null) {
+            mDirty.clear();
+            return;
+        }
+        if(!mFindDone || mDirty.getLength() > RESCAN_LIMIT) {
+            // an edit stopped the search, or it is cheaper to start over
+            restartFind();
+            return;
+        }
+
+        IntList found = new IntList();
+        TextSnapshot snapshot = mBuffer.snapshot();
+        try {
+            for(int i=0;i < mDirty.size();++i) {
+                int start = mDirty.getStart(i);
+                int end = mDirty.getEnd(i);
+
+                // the edited lines, bounded on very long lines
+                int line = mBuffer.findLineNumber(end);
+                int lineEnd = line < getLineCount() ? getLineStart(line + 1) : mBuffer.length();
+                int from = Math.max(getLineStart(mBuffer.findLineNumber(start)), start - RESCAN_CONTEXT);
+                int to = Math.min(lineEnd, end + RESCAN_CONTEXT);
+                if(mFindLiteral != null) {
+                    // a match ending in the edit may start before the line
+                    from = Math.max(0, Math.min(from, start - mFindLiteral.length() + 1));
+                }
 
-        Matcher matcher = Pattern.compile(regex).matcher(mGapBuffer.toString());
+                // re-find a match cut by the window as a whole
+                int prev = mMatches.lower(from);
+                if(prev >= 0 && mMatches.getEnd(prev) > from)
+                    from = mMatches.getStart(prev);
 
-        while(matcher.find()) {
-            mReplaceList.add(new Pair<Integer, Integer>(matcher.start(), matcher.end()));
+                mMatches.removeRange(from, to);
+                found.clear();
+                if(mFindLiteral != null)
+                    snapshot.find(mFindLiteral, from, to, found);
+                else
+                    TextSearcher.find(snapshot, mFindPattern, from, to, found);
+
+                // stop short of the next match that was kept
+                int next = mMatches.ceiling(to);
+                int limit = next >= 0 ? mMatches.getStart(next) : Integer.MAX_VALUE;
+                int count = 0;
+                int[] starts = new int[found.size() / 2];
+                int[] ends = new int[found.size() / 2];
+                for(int j=0;j < found.size() && found.get(j + 1) <= limit;j += 2) {
+                    starts[count] = found.get(j);
+                    ends[count] = found.get(j + 1);
+                    ++count;
+                }
+                mMatches.add(starts, ends, count);
+            }
+        } finally {
+            snapshot.release();
         }
+        mDirty.clear();
+        // the matches are drawn in select mode only
+        if(isSelectMode)
+            postInvalidate();
+    }
+
+    private OnSearchListener mSearchListener = new OnSearchListener() {
+        @Override
+        public void onMatches(final int search, final int[] starts, final int[] ends, final int count) {
+            post(() -> addMatches(search, starts, ends, count));
+        }
+
+        @Override
+        public void onProgress(final int search, final int matchCount, final boolean finished) {
+            post(() -> {
+                if(search != mSearchId) return;
+                mFindDone = finished;
+                if(mFindListener != null)
+                    mFindListener.onFind(matchCount, finished && !mIndexing);
+                if(finished && mPendingReplace != null) {
+                    String replacement = mPendingReplace;
+                    mPendingReplace = null;
+                    replaceMatches(replacement);
+                }
+            });
+        }
+    };
+
+    // add a batch of matches found in the background
+    private void addMatches(int search, int[] starts, int[] ends, int count) {
+        if(search != mSearchId || mFindVersion != mBuffer.getVersion())
+            return; // cancelled, or found in text that was edited since
+
+        mMatches.add(starts, ends, count);
+        postInvalidate();
     }
 
     // replace first 
     public void replaceFirst(String replacement) {
-        if(!mReplaceList.isEmpty() && isEditedMode) {
-            int start = (int)mReplaceList.get(0).first;
-            int end = (int)mReplaceList.get(0).second;
+        if(!mMatches.isEmpty() && isEditedMode) {
+            // the offsets of a running search would be stale
+            cancelFind();
+            int first = mMatches.ceiling(0);
+            int start = mMatches.getStart(first);
+            int end = mMatches.getEnd(first);
+            // the other matches are shifted by the edit
+            mMatches.remove(first);
             
-            mGapBuffer.beginBatchEdit();
-            mGapBuffer.replace(start, end, replacement, true);
-            mGapBuffer.endBatchEdit();
+            mBuffer.beginBatchEdit();
+            mBuffer.replace(start, end, replacement, true);
+            mBuffer.endBatchEdit();
+            // the replacement is not searched again
+            if(mFindDone) mDirty.clear();
             
             int length = replacement.length();
             setCursorPosition(start + length);
             adjustSelectRange(start + length, start + length);
-
-            // remove the first item
-            mReplaceList.remove(0);
-            
-            int delta = start + length - end;
-            // do not use the find(regex) method to re-find
-            // recalculate replace list by index
-            for(int i=0;i < mReplaceList.size();++i) {
-                int first = (int) mReplaceList.get(i).first + delta;
-                int second = (int) mReplaceList.get(i).second + delta;
-                mReplaceList.set(i, new Pair<Integer, Integer>(first, second));
-            }
+            onTextChanged();
         } else {
             // if the replace Lists is empty
             // set the select mode false
@@ -757,11 +1308,50 @@ public class HighlightTextView extends View {
         postInvalidate();
     }
 
-    // replace all
+    // replace all matches, once the background search went through the
+    // whole text. Until then the matches found keep being drawn and passed
+    // to the OnFindListener, an edit or another find cancels the replace
     public void replaceAll(String replacement) {
-        while(!mReplaceList.isEmpty() && isEditedMode) {
-            replaceFirst(replacement);
+        if(isEditedMode && (mFindPattern != null || mFindLiteral != null)) {
+            if(mFindDone && mDirty.getLength() <= RESCAN_LIMIT) {
+                removeCallbacks(rescanAction);
+                rescanMatches();
+            } else {
+                // stopped, stale, or cheaper to start over than to rescan
+                if(mFindDone || mSearchId == 0 || mFindVersion != mBuffer.getVersion())
+                    restartFind();
+                mPendingReplace = replacement;
+                return;
+            }
+        }
+        replaceMatches(replacement);
+    }
+
+    private void replaceMatches(String replacement) {
+        if(!mMatches.isEmpty() && isEditedMode) {
+            int count = mMatches.size();
+            int[] starts = new int[count];
+            int[] ends = new int[count];
+            mMatches.getRanges(starts, ends);
+
+            // one pass over the text and one undo action for all matches
+            mBuffer.replaceAll(starts, ends, count, replacement, true);
+            if(mFindDone) mDirty.clear();
+
+            int delta = 0;
+            for(int i=0;i < count;++i) {
+                delta += replacement.length() - (ends[i] - starts[i]);
+            }
+            int position = ends[count - 1] + delta;
+            setCursorPosition(position);
+            adjustSelectRange(position, position);
+
+            mMatches.clear();
+            onTextChanged();
+        } else {
+            isSelectMode = false;
         }
+        postInvalidate();
     }
 
     // select all text
@@ -773,7 +1363,7 @@ public class HighlightTextView extends View {
         // at first index
         selectionStart = 0;
         // at last index
-        selectionEnd = mGapBuffer.length();
+        selectionEnd = mBuffer.length();
 
         // set handle left at first position
         selectHandleLeftX = getLeftSpace();
@@ -786,15 +1376,14 @@ public class HighlightTextView extends View {
         // set cursor index and position
         setCursorPosition(selectionEnd);
 
-        if(!mReplaceList.isEmpty())
-            mReplaceList.clear();
+        clearFind();
 
         postInvalidate();
     }
 
     public String getSelectText() {
         if(isSelectMode)
-            return mGapBuffer.substring(selectionStart, selectionEnd);
+            return mBuffer.substring(selectionStart, selectionEnd);
         return null;
     }
 
@@ -810,32 +1399,47 @@ public class HighlightTextView extends View {
     }
 
     public boolean canUndo() {
-        return mGapBuffer.canUndo();
+        return mBuffer.canUndo();
     }
     
     public boolean canRedo() {
-        return mGapBuffer.canRedo();
+        return mBuffer.canRedo();
     }
     
     public void undo() {
-        int index = mGapBuffer.undo();
-        if(index >= 0) {
-            mCursorIndex = index;
-            mCursorLine = getOffsetLine(index);
-            adjustCursorPosition();
-            onTextChanged();
-            scrollToVisable();
-        }
+        undoOrRedo(false);
     }
 
     public void redo() {
-        int index = mGapBuffer.redo();
+        undoOrRedo(true);
+    }
+
+    private void undoOrRedo(boolean redo) {
+        int lineCount = getLineCount();
+        int leftSpace = getLeftSpace();
+        long version = mBuffer.getVersion();
+        invalidateCursor();
+        mUndoRanges.clear();
+        mBuffer.addOnEditListener(mUndoRanges);
+        int index;
+        try {
+            index = redo ? mBuffer.redo() : mBuffer.undo();
+        } finally {
+            mBuffer.removeOnEditListener(mUndoRanges);
+        }
         if(index >= 0) {
             mCursorIndex = index;
             mCursorLine = getOffsetLine(index);
             adjustCursorPosition();
             onTextChanged();
             scrollToVisable();
+            if(!mUndoRanges.isEmpty()) {
+                int firstLine = getOffsetLine(mUndoRanges.getStart(0));
+                int lastLine = getOffsetLine(mUndoRanges.getEnd(mUndoRanges.size() - 1));
+                invalidateEdit(firstLine, lastLine, lineCount, leftSpace, version);
+            }
+            // where the cursor moved to, it may be off the edited lines
+            invalidateCursor();
         }
     }
 
@@ -845,19 +1449,13 @@ public class HighlightTextView extends View {
         int left = getLeftSpace();
 
         // select handle left
-        int startLine = mGapBuffer.findLineNumber(start);
-        int lineStart = getLineStart(startLine);
-        String text = mGapBuffer.substring(lineStart, start);
-
-        selectHandleLeftX = left + measureText(text);
+        int startLine = mBuffer.findLineNumber(start);
+        selectHandleLeftX = left + getOffsetX(startLine, start);
         selectHandleLeftY = startLine * getLineHeight();
 
         // select handle right
         int endLine = getOffsetLine(end);
-        lineStart = getLineStart(endLine);
-        text = mGapBuffer.substring(lineStart, end);
-
-        selectHandleRightX = left + measureText(text);
+        selectHandleRightX = left + getOffsetX(endLine, end);
         selectHandleRightY = endLine * getLineHeight();
 
         // set selection
@@ -868,10 +1466,7 @@ public class HighlightTextView extends View {
     // adjust the cursor coordinate for insert and delete text
     private void adjustCursorPosition() {
         // cursor x coordinate
-        int start = getLineStart(mCursorLine);
-
-        String text = mGapBuffer.substring(start, mCursorIndex);
-        mCursorPosX = getLeftSpace() + measureText(text);
+        mCursorPosX = getLeftSpace() + getOffsetX(mCursorLine, mCursorIndex);
 
         // cursor y coordinate
         mCursorPosY = (mCursorLine - 1) * getLineHeight();
@@ -883,9 +1478,7 @@ public class HighlightTextView extends View {
         mCursorIndex = index;
         mCursorLine = getOffsetLine(index);
 
-        String text = mGapBuffer.substring(getLineStart(mCursorLine), index);
-        int width = measureText(text);
-        mCursorPosX = getLeftSpace() + width;
+        mCursorPosX = getLeftSpace() + getOffsetX(mCursorLine, index);
         mCursorPosY = (mCursorLine - 1) * getLineHeight();
     }
 
@@ -901,42 +1494,13 @@ public class HighlightTextView extends View {
         if(mCursorPosY > bottom - getLineHeight())
             mCursorPosY = bottom - getLineHeight();
 
-        // estimate the cursor x position
-        int left = getLeftSpace();
-
-        int prev = left;
-        int next = left;
-
         mCursorLine = mCursorPosY / getLineHeight() + 1;
-        mCursorIndex = getLineStart(mCursorLine);
-
-        String text = getLine(mCursorLine);
-        int length = text.length();
 
-        float[] widths = new float[length];
-        mTextPaint.getTextWidths(text, widths);
-
-        for(int i=0; next < x && i < length; ++i) {
-            if(i > 0) {
-                prev += widths[i - 1];
-            }
-            next += widths[i];
-        }
-
-        // calculation the cursor x coordinate
-        if(Math.abs(x - prev) <= Math.abs(next - x)) {
-            mCursorPosX = prev;
-        } else {
-            mCursorPosX = next;
-        }
-
-        // calculation the cursor index
-        if(mCursorPosX > left) {
-            for(int j=0; left < mCursorPosX && j < length; ++j) {
-                left += widths[j];
-                ++mCursorIndex;
-            }
-        }
+        // the char boundary closest to x
+        int left = getLeftSpace();
+        int column = mWidths.getColumn(mCursorLine, x - left);
+        mCursorIndex = getLineStart(mCursorLine) + column;
+        mCursorPosX = left + mWidths.getAdvance(mCursorLine, column);
     }
 
     // toogle soft keyboard
@@ -965,10 +1529,10 @@ public class HighlightTextView extends View {
         int dx = 0;
         if(mCursorPosX - getScrollX() <= slopX) {
             // left scroll
-            dx = -measureText(String.valueOf(mGapBuffer.charAt(mCursorIndex)));
+            dx = -measureText(String.valueOf(mBuffer.charAt(mCursorIndex)));
         } else if(mCursorPosX - getScrollX() >= screenWidth - slopX) {
             // right scroll
-            dx = measureText(String.valueOf(mGapBuffer.charAt(mCursorIndex + 1)));
+            dx = measureText(String.valueOf(mBuffer.charAt(mCursorIndex + 1)));
         }   
 
         // when hide soft keyboard
@@ -1011,18 +1575,18 @@ public class HighlightTextView extends View {
 
         // when on long press to select a word
         private String findNearestWord() {
-            int length = mGapBuffer.length();
+            int length = mBuffer.length();
 
             // select start index
             for(selectionStart = mCursorIndex; selectionStart >= 0; --selectionStart) {
-                char c = mGapBuffer.charAt(selectionStart);
+                char c = mBuffer.charAt(selectionStart);
                 if(!Character.isJavaIdentifierPart(c))
                     break;
             }
 
             // select end index
             for(selectionEnd = mCursorIndex; selectionEnd < length; ++selectionEnd) {
-                char c = mGapBuffer.charAt(selectionEnd);
+                char c = mBuffer.charAt(selectionEnd);
                 if(!Character.isJavaIdentifierPart(c))
                     break;
             }
@@ -1030,7 +1594,7 @@ public class HighlightTextView extends View {
             // select start index needs to be incremented by 1
             ++selectionStart;
             if(selectionStart < selectionEnd) 
-                return mGapBuffer.substring(selectionStart, selectionEnd);
+                return mBuffer.substring(selectionStart, selectionEnd);
             return null;
         }
 
@@ -1134,14 +1698,21 @@ public class HighlightTextView extends View {
                 // stop cursor blink
                 removeCallbacks(blinkAction);
                 mCursorVisiable = mHandleMiddleVisable = true;
+                boolean wasSelecting = isSelectMode;
+                int oldLine = mCursorLine;
                 isSelectMode = false;
 
-                if(!mReplaceList.isEmpty()) 
-                    mReplaceList.clear();
+                clearFind();
 
                 setCursorPosition(x, y);
                 //Log.i(TAG, "mCursorIndex: " + mCursorIndex);
-                postInvalidate();
+                if(wasSelecting) {
+                    postInvalidate();
+                } else {
+                    // the cursor line background moves
+                    invalidateLines(oldLine, oldLine);
+                    invalidateLines(mCursorLine, mCursorLine);
+                }
                 mLastTapTime = System.currentTimeMillis();
                 // cursor start blink
                 postDelayed(blinkAction, BLINK_TIMEOUT);
@@ -1152,6 +1723,12 @@ public class HighlightTextView extends View {
 
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            // the line of the dragged handle
+            int oldLine = mCursorLine;
+            if(touchOnSelectHandleLeft)
+                oldLine = selectHandleLeftY / getLineHeight();
+            else if(touchOnSelectHandleRight)
+                oldLine = selectHandleRightY / getLineHeight();
 
             if(touchOnSelectHandleMiddle) {
                 // calculation select handle middle coordinate and index
@@ -1209,7 +1786,12 @@ public class HighlightTextView extends View {
                 reverse();
             }
 
-            postInvalidate();
+            if(touchOnSelectHandleMiddle || touchOnSelectHandleLeft || touchOnSelectHandleRight) {
+                // only the lines the handle moved over changed
+                invalidateLines(Math.min(oldLine, mCursorLine), Math.max(oldLine, mCursorLine));
+            } else {
+                postInvalidate();
+            }
             return super.onScroll(e1, e2, distanceX, distanceY);
         }
 
@@ -1234,7 +1816,7 @@ public class HighlightTextView extends View {
             super.onLongPress(e);
             removeCallbacks(blinkAction);
             mCursorVisiable = mHandleMiddleVisable = true;
-            if(!touchOnSelectHandleMiddle && mGapBuffer.length() > 0) {
+            if(!touchOnSelectHandleMiddle && mBuffer.length() > 0) {
                 float x = e.getX() + getScrollX();
                 float y = e.getY() + getScrollY();
                 setCursorPosition(x, y);
@@ -1246,16 +1828,15 @@ public class HighlightTextView extends View {
                     isSelectMode = true;
 
                     int left = getLeftSpace();
-                    int lineStart = getLineStart(mCursorLine);
                     // select handle left (x y)
-                    selectHandleLeftX = left + measureText(mGapBuffer.substring(lineStart, selectionStart));
-                    selectHandleRightX = left + measureText(mGapBuffer.substring(lineStart, selectionEnd));
+                    selectHandleLeftX = left + getOffsetX(mCursorLine, selectionStart);
+                    selectHandleRightX = left + getOffsetX(mCursorLine, selectionEnd);
                     selectHandleLeftY = selectHandleRightY = mCursorPosY + getLineHeight();
 
                     // set cursor index and position
                     setCursorPosition(selectionEnd);
 
-                    find(selectWord);
+                    findText(selectWord, false);
                 }
             }
             postInvalidate();
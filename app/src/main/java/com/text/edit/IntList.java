@@ -0,0 +1,61 @@
+package com.text.edit;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, so that large result sets such as
+ * match offsets do not box every value.
+ */
+public class IntList {
+
+    private int[] _data;
+    private int _size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        _data = new int[Math.max(capacity, 1)];
+    }
+
+    public void add(int value) {
+        if (_size == _data.length) {
+            _data = Arrays.copyOf(_data, _size * 2);
+        }
+        _data[_size++] = value;
+    }
+
+    public int get(int index) {
+        if (index >= _size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+        }
+        return _data[index];
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public void clear() {
+        _size = 0;
+    }
+
+    /**
+     * Drops the values from index size on
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > _size) {
+            throw new IndexOutOfBoundsException("size " + size + " out of bounds");
+        }
+        _size = size;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(_data, _size);
+    }
+}
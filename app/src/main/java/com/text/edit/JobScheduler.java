@@ -0,0 +1,54 @@
+package com.text.edit;
+
+/**
+ * Runs TextJobs on a worker thread, one at a time, so lexing and
+ * measuring never hold up drawing.
+ *
+ * A job works on a snapshot of the text, so it neither blocks the editor
+ * nor copies the text. Starting a new job cancels the running one, and a
+ * job stops by itself once the text is edited, since its results would be
+ * stale.
+ */
+public class JobScheduler {
+
+    private final String _name;
+    private TextJob _job;
+
+    /**
+     * @param name The name of the worker threads
+     */
+    public JobScheduler(String name) {
+        _name = name;
+    }
+
+    /**
+     * Starts job on the text of storage
+     */
+    public synchronized void start(TextStorage storage, TextJob job, OnJobListener listener) {
+        cancel();
+        _job = job;
+        final TextSnapshot snapshot = storage.snapshot();
+
+        Thread worker = new Thread(() -> {
+            try {
+                if (job.run(storage, snapshot)) {
+                    listener.onJobDone(job);
+                }
+            } finally {
+                snapshot.release();
+            }
+        }, _name);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Stops the running job, its results are not delivered
+     */
+    public synchronized void cancel() {
+        if (_job != null) {
+            _job.cancel();
+            _job = null;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.text.edit;
+
+import android.graphics.Paint;
+
+/**
+ * The measures the view lays out its lines with: the line height, the
+ * descent of the text below its baseline, the width of the line numbers
+ * and the space left of the text.
+ *
+ * They are computed when the font, the left padding or the line count
+ * change, not on every call, as drawing, hit-testing and the gestures ask
+ * for them many times a frame. The line count follows the edits without
+ * locking the storage: an insertion adds its line breaks, a deletion,
+ * which does not tell what it removed, has the lines counted again on the
+ * next call, as the storage is locked while it calls the OnEditListener.
+ * A storage that is never edited, such as a MappedTextStorage still
+ * indexing its lines, is asked for its line count on every call instead.
+ * Not threadsafe, the view uses it on the UI thread.
+ */
+public class LayoutMetrics implements OnEditListener {
+
+    private final Paint _paint;
+    // between the line numbers and the text
+    private final int _gutterSpacing;
+    private final Paint.FontMetricsInt _fontMetrics = new Paint.FontMetricsInt();
+    private final char[] _digits = new char[10];
+
+    private TextStorage _storage;
+    private boolean _tracked;
+    private int _lineCount;
+    private boolean _lineCountStale;
+    private int _paddingLeft;
+
+    private int _lineHeight;
+    private int _descent;
+    private int _spaceWidth;
+    // the width of the line numbers, measured for _gutterLineCount lines
+    private int _gutterWidth;
+    private int _gutterLineCount = -1;
+
+    public LayoutMetrics(Paint paint, int gutterSpacing) {
+        _paint = paint;
+        _gutterSpacing = gutterSpacing;
+    }
+
+    /**
+     * Counts the lines of storage
+     *
+     * @param tracked Whether the edits of storage are passed to the
+     *          OnEditListener methods, false if it is never edited
+     */
+    public void setStorage(TextStorage storage, boolean tracked) {
+        _storage = storage;
+        _tracked = tracked;
+        _lineCount = storage.getLineCount();
+        _lineCountStale = false;
+    }
+
+    /**
+     * Measures the font of the paint, after its size or typeface changed
+     */
+    public void updateFont() {
+        _paint.getFontMetricsInt(_fontMetrics);
+        _lineHeight = _fontMetrics.bottom - _fontMetrics.top;
+        _descent = (int) _paint.descent();
+        _spaceWidth = (int) _paint.measureText(" ");
+        _gutterLineCount = -1;
+    }
+
+    public void setPaddingLeft(int paddingLeft) {
+        _paddingLeft = paddingLeft;
+    }
+
+    public int getLineHeight() {
+        return _lineHeight;
+    }
+
+    /**
+     * @return How far the text goes below its baseline
+     */
+    public int getDescent() {
+        return _descent;
+    }
+
+    public int getSpaceWidth() {
+        return _spaceWidth;
+    }
+
+    public int getLineCount() {
+        if (!_tracked || _lineCountStale) {
+            _lineCount = _storage.getLineCount();
+            _lineCountStale = false;
+        }
+        return _lineCount;
+    }
+
+    /**
+     * @return The width of the widest line number
+     */
+    public int getGutterWidth() {
+        int lineCount = getLineCount();
+        if (lineCount != _gutterLineCount) {
+            int start = formatLineNumber(lineCount, _digits);
+            _gutterWidth = (int) Math.ceil(_paint.measureText(_digits, start,
+                                                              _digits.length - start));
+            _gutterLineCount = lineCount;
+        }
+        return _gutterWidth;
+    }
+
+    /**
+     * @return The x the text starts at, right of the padding and the
+     *          line numbers
+     */
+    public int getLeftSpace() {
+        return _paddingLeft + getGutterWidth() + _gutterSpacing;
+    }
+
+    /**
+     * Writes the digits of lineNumber to the end of digits
+     *
+     * @return The index of the first one
+     */
+    public static int formatLineNumber(int lineNumber, char[] digits) {
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + lineNumber % 10);
+            lineNumber /= 10;
+        } while (lineNumber > 0);
+        return start;
+    }
+
+    @Override
+    public void onInsert(int offset, char[] chars, int start, int count) {
+        for (int i = start; i < start + count; ++i) {
+            if (chars[i] == '\n') {
+                ++_lineCount;
+            }
+        }
+    }
+
+    @Override
+    public void onDelete(int start, int end) {
+        _lineCountStale = true;
+    }
+}
@@ -0,0 +1,380 @@
+package com.text.edit;
+
+import java.util.Arrays;
+
+/**
+ * A balanced index of line lengths used to map between line indices
+ * and character offsets in O(log n).
+ *
+ * Every line is a node of an implicit treap (a randomized balanced binary
+ * tree keyed by position). A node stores the number of chars of its line,
+ * including the terminating '\n', and the aggregated char count and line
+ * count of its subtree. The last line is the only one without a '\n'.
+ *
+ * Nodes live in parallel int arrays instead of objects, so that a
+ * document with hundreds of thousands of lines stays compact. Index 0 is
+ * a sentinel (NIL) with zero size and zero length.
+ *
+ * All line indices used here are 0-based.
+ */
+public class LineIndex {
+
+    private static final int NIL = 0;
+    private static final char NEWLINE = '\n';
+
+    private int[] _left;
+    private int[] _right;
+    private int[] _priority;
+    // line count of the subtree
+    private int[] _size;
+    // chars of the line itself
+    private int[] _length;
+    // chars of the subtree
+    private int[] _sum;
+
+    private int _root;
+    // next never used node
+    private int _nodeCount;
+    // head of the list of released nodes, linked through _right
+    private int _freeList;
+    private int _seed;
+
+    // results of split()
+    private int _splitLeft, _splitRight;
+
+    public LineIndex() {
+        _left = new int[64];
+        _right = new int[64];
+        _priority = new int[64];
+        _size = new int[64];
+        _length = new int[64];
+        _sum = new int[64];
+        _seed = 0x2545F491;
+        clear();
+    }
+
+    /**
+     * Drops all lines and leaves the index with a single empty line
+     */
+    public void clear() {
+        _nodeCount = 1; // node 0 is NIL
+        _freeList = NIL;
+        _root = newNode(0);
+    }
+
+    /**
+     * Makes this index a copy of other with a few array copies, instead of
+     * finding the lines in the text again
+     */
+    public void copyFrom(LineIndex other) {
+        int capacity = Math.max(64, other._nodeCount);
+        _left = Arrays.copyOf(other._left, capacity);
+        _right = Arrays.copyOf(other._right, capacity);
+        _priority = Arrays.copyOf(other._priority, capacity);
+        _size = Arrays.copyOf(other._size, capacity);
+        _length = Arrays.copyOf(other._length, capacity);
+        _sum = Arrays.copyOf(other._sum, capacity);
+        _root = other._root;
+        _nodeCount = other._nodeCount;
+        _freeList = other._freeList;
+        _seed = other._seed;
+    }
+
+    public int getLineCount() {
+        return _size[_root];
+    }
+
+    /**
+     * @return The total number of chars covered by the index
+     */
+    public int length() {
+        return _sum[_root];
+    }
+
+    /**
+     * Gets the offset of the first char of the line
+     *
+     * @param lineIndex 0-based index of the line
+     */
+    public int getLineStart(int lineIndex) {
+        int offset = 0;
+        int t = _root;
+        while (t != NIL) {
+            int leftSize = _size[_left[t]];
+            if (lineIndex < leftSize) {
+                t = _left[t];
+            } else {
+                offset += _sum[_left[t]];
+                if (lineIndex == leftSize) {
+                    break;
+                }
+                offset += _length[t];
+                lineIndex -= leftSize + 1;
+                t = _right[t];
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Gets the number of chars of the line, including its '\n'
+     *
+     * @param lineIndex 0-based index of the line
+     */
+    public int getLineSize(int lineIndex) {
+        int t = _root;
+        while (t != NIL) {
+            int leftSize = _size[_left[t]];
+            if (lineIndex < leftSize) {
+                t = _left[t];
+            } else if (lineIndex == leftSize) {
+                return _length[t];
+            } else {
+                lineIndex -= leftSize + 1;
+                t = _right[t];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the line that contains charOffset. An offset equal to
+     * length() belongs to the last line.
+     *
+     * @return 0-based index of the line
+     */
+    public int findLine(int charOffset) {
+        int line = 0;
+        int t = _root;
+        while (t != NIL) {
+            int leftSum = _sum[_left[t]];
+            if (charOffset < leftSum) {
+                t = _left[t];
+            } else if (charOffset < leftSum + _length[t]) {
+                return line + _size[_left[t]];
+            } else {
+                charOffset -= leftSum + _length[t];
+                line += _size[_left[t]] + 1;
+                t = _right[t];
+            }
+        }
+        return getLineCount() - 1;
+    }
+
+    /**
+     * Adds the count chars of chars, starting from start, at offset
+     */
+    public void insert(int offset, char[] chars, int start, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        int line = findLine(offset);
+        int column = offset - getLineStart(line);
+        int end = start + count;
+
+        int first = -1;
+        for (int i = start; i < end; ++i) {
+            if (chars[i] == NEWLINE) {
+                first = i;
+                break;
+            }
+        }
+
+        if (first < 0) {
+            addLength(line, count);
+            return;
+        }
+
+        int[] lengths = new int[8];
+        int lines = 0;
+        int segmentStart = first + 1;
+        for (int i = segmentStart; i < end; ++i) {
+            if (chars[i] == NEWLINE) {
+                if (lines == lengths.length) {
+                    lengths = Arrays.copyOf(lengths, lines * 2);
+                }
+                lengths[lines++] = i + 1 - segmentStart;
+                segmentStart = i + 1;
+            }
+        }
+        splitLine(line, column, first + 1 - start, lengths, lines, end - segmentStart);
+    }
+
+    /**
+     * Splits line at column after text containing at least one '\n' was
+     * inserted there.
+     *
+     * @param head chars of the inserted text up to and including the first '\n'
+     * @param lengths lengths of the complete lines following the first '\n'
+     * @param tail chars of the inserted text after the last '\n'
+     */
+    private void splitLine(int line, int column, int head,
+                           int[] lengths, int lines, int tail) {
+        int oldLength = getLineSize(line);
+        addLength(line, column + head - oldLength);
+
+        int middle = NIL;
+        for (int i = 0; i < lines; ++i) {
+            middle = merge(middle, newNode(lengths[i]));
+        }
+        middle = merge(middle, newNode(tail + oldLength - column));
+
+        split(_root, line + 1);
+        int right = _splitRight;
+        _root = merge(merge(_splitLeft, middle), right);
+    }
+
+    /**
+     * Removes the chars [start, end)
+     */
+    public void delete(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        int startLine = findLine(start);
+        int endLine = findLine(end);
+
+        if (startLine == endLine) {
+            addLength(startLine, start - end);
+            return;
+        }
+
+        int startColumn = start - getLineStart(startLine);
+        int endLineStart = getLineStart(endLine);
+        int remain = endLineStart + getLineSize(endLine) - end;
+
+        // detach lines [startLine, endLine] and replace them with one line
+        split(_root, endLine + 1);
+        int right = _splitRight;
+        split(_splitLeft, startLine);
+        int left = _splitLeft;
+        release(_splitRight);
+
+        _root = merge(merge(left, newNode(startColumn + remain)), right);
+    }
+
+    private void addLength(int lineIndex, int delta) {
+        int t = _root;
+        while (t != NIL) {
+            _sum[t] += delta;
+            int leftSize = _size[_left[t]];
+            if (lineIndex < leftSize) {
+                t = _left[t];
+            } else if (lineIndex == leftSize) {
+                _length[t] += delta;
+                return;
+            } else {
+                lineIndex -= leftSize + 1;
+                t = _right[t];
+            }
+        }
+    }
+
+    /**
+     * Splits tree t into the first k lines (_splitLeft) and the rest (_splitRight)
+     */
+    private void split(int t, int k) {
+        if (t == NIL) {
+            _splitLeft = _splitRight = NIL;
+            return;
+        }
+
+        if (k <= _size[_left[t]]) {
+            split(_left[t], k);
+            _left[t] = _splitRight;
+            update(t);
+            _splitRight = t;
+        } else {
+            split(_right[t], k - _size[_left[t]] - 1);
+            _right[t] = _splitLeft;
+            update(t);
+            _splitLeft = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) return b;
+        if (b == NIL) return a;
+
+        if (_priority[a] > _priority[b]) {
+            _right[a] = merge(_right[a], b);
+            update(a);
+            return a;
+        } else {
+            _left[b] = merge(a, _left[b]);
+            update(b);
+            return b;
+        }
+    }
+
+    private void update(int t) {
+        _size[t] = _size[_left[t]] + _size[_right[t]] + 1;
+        _sum[t] = _sum[_left[t]] + _sum[_right[t]] + _length[t];
+    }
+
+    private int newNode(int length) {
+        int t;
+        if (_freeList != NIL) {
+            t = _freeList;
+            _freeList = _right[t];
+        } else {
+            if (_nodeCount == _left.length) {
+                grow();
+            }
+            t = _nodeCount++;
+        }
+
+        _left[t] = _right[t] = NIL;
+        _priority[t] = nextPriority();
+        _length[t] = _sum[t] = length;
+        _size[t] = 1;
+        return t;
+    }
+
+    /**
+     * Returns all nodes of the subtree t to the free list
+     */
+    private void release(int t) {
+        if (t == NIL) {
+            return;
+        }
+
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = t;
+        while (top > 0) {
+            int node = stack[--top];
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (_left[node] != NIL) stack[top++] = _left[node];
+            if (_right[node] != NIL) stack[top++] = _right[node];
+
+            _left[node] = NIL;
+            _right[node] = _freeList;
+            _freeList = node;
+        }
+    }
+
+    private void grow() {
+        int capacity = _left.length * 2;
+        _left = Arrays.copyOf(_left, capacity);
+        _right = Arrays.copyOf(_right, capacity);
+        _priority = Arrays.copyOf(_priority, capacity);
+        _size = Arrays.copyOf(_size, capacity);
+        _length = Arrays.copyOf(_length, capacity);
+        _sum = Arrays.copyOf(_sum, capacity);
+    }
+
+    // xorshift pseudo random generator
+    private int nextPriority() {
+        int x = _seed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        _seed = x;
+        return x;
+    }
+}
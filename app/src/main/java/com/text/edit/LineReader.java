@@ -0,0 +1,112 @@
+package com.text.edit;
+
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a TextSnapshot one after the other through a window
+ * of its chars, for the jobs that go over many lines off the UI thread.
+ * Each char is copied out of the snapshot about once.
+ */
+public class LineReader {
+
+    // chars read at a time, a job for a typed line reads a line or two
+    private static final int CHUNK = 4 * 1024;
+
+    private final TextSnapshot _text;
+    private final int _length;
+
+    // the text [_bufferStart, _bufferStart + _bufferLength) in _chars
+    private char[] _chars = new char[CHUNK];
+    private int _bufferStart;
+    private int _bufferLength;
+
+    // the start of the next line, -1 past the last one
+    private int _offset;
+    // the current line in _chars
+    private int _start;
+    private int _end;
+
+    /**
+     * @param offset The start of the first line to read
+     */
+    public LineReader(TextSnapshot text, int offset) {
+        _text = text;
+        _length = text.length();
+        _offset = offset;
+        _bufferStart = offset;
+    }
+
+    /**
+     * Reads the next line, without its \n
+     *
+     * @return false if the last line was read
+     */
+    public boolean next() {
+        if (_offset < 0) {
+            return false;
+        }
+
+        int end = lineEnd(_offset);
+        _start = _offset - _bufferStart;
+        _end = end - _bufferStart;
+        _offset = end < _length ? end + 1 : -1;
+        return true;
+    }
+
+    /**
+     * @return Whether the current line is the last one, the only one not
+     *          ended by a \n
+     */
+    public boolean isLast() {
+        return _offset < 0;
+    }
+
+    /**
+     * @return The array holding the current line
+     */
+    public char[] getChars() {
+        return _chars;
+    }
+
+    /**
+     * @return The index of the first char of the current line in getChars()
+     */
+    public int getStart() {
+        return _start;
+    }
+
+    /**
+     * @return The index after the last char of the current line in getChars()
+     */
+    public int getEnd() {
+        return _end;
+    }
+
+    // read on up to the end of the line at offset, return the offset of its \n
+    private int lineEnd(int offset) {
+        int scan = offset;
+        while (true) {
+            for (int k = scan - _bufferStart; k < _bufferLength; ++k) {
+                if (_chars[k] == '\n') {
+                    return _bufferStart + k;
+                }
+            }
+            int bufferEnd = _bufferStart + _bufferLength;
+            if (bufferEnd >= _length) {
+                return _length;
+            }
+
+            // drop the lines before, and read on
+            int keep = bufferEnd - offset;
+            if (keep + CHUNK > _chars.length) {
+                _chars = Arrays.copyOf(_chars, Math.max(keep + CHUNK, _chars.length * 2));
+            }
+            System.arraycopy(_chars, offset - _bufferStart, _chars, 0, keep);
+            int count = Math.min(_chars.length - keep, _length - bufferEnd);
+            _text.getChars(bufferEnd, bufferEnd + count, _chars, keep);
+            _bufferStart = offset;
+            _bufferLength = keep + count;
+            scan = bufferEnd;
+        }
+    }
+}
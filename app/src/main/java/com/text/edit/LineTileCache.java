@@ -0,0 +1,168 @@
+package com.text.edit;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import java.util.Arrays;
+
+/**
+ * Keeps the drawn lines of a text recorded in Pictures, in tiles of
+ * TILE_LINES lines, so a frame while scrolling plays back the few tiles
+ * in view instead of drawing every line again.
+ *
+ * A tile is drawn from its Picture as long as the text is at the version
+ * it was recorded at. After an edit the view drops the tiles of the lines
+ * it changed and moves the others on to the new version by rebase(), the
+ * edits it does not follow so drop all of them. Long lines are drawn only
+ * around the columns in view, so a tile is recorded a view width wider on
+ * each side, and recorded again once horizontal scrolling leaves that.
+ *
+ * Not threadsafe, the view uses it on the UI thread.
+ */
+public class LineTileCache {
+
+    public static final int TILE_LINES = 32;
+    // tiles kept, least recently drawn first out
+    private static final int MAX_TILES = 8;
+    private static final int EMPTY = -1;
+
+    /**
+     * Draws the lines of a tile while it is recorded
+     */
+    public interface Renderer {
+        /**
+         * Draws the lines [firstLine, lastLine], the ones too long to draw
+         * whole only where they are in [left, right)
+         *
+         * @return The width of the widest line
+         */
+        int drawLines(Canvas canvas, int firstLine, int lastLine, int left, int right);
+    }
+
+    private final Renderer _renderer;
+
+    // by slot, the tile index is (its first line - 1) / TILE_LINES
+    private final int[] _tiles = new int[MAX_TILES];
+    private final long[] _versions = new long[MAX_TILES];
+    private final int[] _lefts = new int[MAX_TILES];
+    private final int[] _rights = new int[MAX_TILES];
+    private final int[] _widths = new int[MAX_TILES];
+    private final Picture[] _pictures = new Picture[MAX_TILES];
+    private final long[] _used = new long[MAX_TILES];
+    private long _useCount;
+
+    public LineTileCache(Renderer renderer) {
+        _renderer = renderer;
+        clear();
+    }
+
+    /**
+     * Draws the lines [firstLine, lastLine] from their tiles, recording
+     * the ones missing, out of date, or recorded for other columns than
+     * the x in view, [left, right)
+     *
+     * @return The width of the widest line of the tiles
+     */
+    public int draw(Canvas canvas, int firstLine, int lastLine, int lineCount, int lineHeight,
+                    long version, int left, int right) {
+        int width = 0;
+        int lastTile = (lastLine - 1) / TILE_LINES;
+        for (int tile = (firstLine - 1) / TILE_LINES; tile <= lastTile; ++tile) {
+            int slot = find(tile);
+            if (slot == EMPTY || _versions[slot] != version
+                || left < _lefts[slot] || right > _rights[slot]) {
+                slot = record(tile, slot, lineCount, lineHeight, version, left, right);
+            }
+            _used[slot] = ++_useCount;
+
+            canvas.save();
+            canvas.translate(0, tile * TILE_LINES * lineHeight);
+            canvas.drawPicture(_pictures[slot]);
+            canvas.restore();
+            width = Math.max(width, _widths[slot]);
+        }
+        return width;
+    }
+
+    /**
+     * Drops the tiles of the lines [firstLine, lastLine]
+     */
+    public void drop(int firstLine, int lastLine) {
+        int firstTile = (firstLine - 1) / TILE_LINES;
+        int lastTile = (lastLine - 1) / TILE_LINES;
+        for (int i = 0; i < MAX_TILES; ++i) {
+            if (_tiles[i] >= firstTile && _tiles[i] <= lastTile) {
+                _tiles[i] = EMPTY;
+            }
+        }
+    }
+
+    /**
+     * Drops the tiles of the lines from firstLine to the end, whose lines
+     * moved
+     */
+    public void dropFrom(int firstLine) {
+        drop(firstLine, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Keeps the tiles recorded at oldVersion for newVersion, after an edit
+     * whose lines were dropped
+     */
+    public void rebase(long oldVersion, long newVersion) {
+        for (int i = 0; i < MAX_TILES; ++i) {
+            if (_tiles[i] != EMPTY && _versions[i] == oldVersion) {
+                _versions[i] = newVersion;
+            }
+        }
+    }
+
+    /**
+     * Drops all tiles, after the font or the text changed
+     */
+    public void clear() {
+        Arrays.fill(_tiles, EMPTY);
+        Arrays.fill(_used, 0);
+    }
+
+    private int find(int tile) {
+        for (int i = 0; i < MAX_TILES; ++i) {
+            if (_tiles[i] == tile) {
+                return i;
+            }
+        }
+        return EMPTY;
+    }
+
+    private int record(int tile, int slot, int lineCount, int lineHeight, long version,
+                       int left, int right) {
+        if (slot == EMPTY) {
+            slot = 0;
+            for (int i = 1; i < MAX_TILES; ++i) {
+                if (_used[i] < _used[slot]) {
+                    slot = i;
+                }
+            }
+        }
+        if (_pictures[slot] == null) {
+            _pictures[slot] = new Picture();
+        }
+
+        int margin = right - left;
+        left = Math.max(0, left - margin);
+        right += margin;
+        int firstLine = tile * TILE_LINES + 1;
+        int lastLine = Math.min(lineCount, firstLine + TILE_LINES - 1);
+
+        Picture picture = _pictures[slot];
+        Canvas canvas = picture.beginRecording(right, TILE_LINES * lineHeight);
+        canvas.translate(0, -tile * TILE_LINES * lineHeight);
+        _widths[slot] = _renderer.drawLines(canvas, firstLine, lastLine, left, right);
+        picture.endRecording();
+
+        _tiles[slot] = tile;
+        _versions[slot] = version;
+        _lefts[slot] = left;
+        _rights[slot] = right;
+        return slot;
+    }
+}
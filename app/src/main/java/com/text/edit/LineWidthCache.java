@@ -0,0 +1,445 @@
+package com.text.edit;
+
+import android.graphics.Paint;
+import java.util.Arrays;
+
+/**
+ * Caches the drawn width of the lines of a TextStorage, kept in step with
+ * its edits, so a line is only measured again after it was edited or the
+ * font changed.
+ *
+ * For the lines last drawn or edited on, the x of every STOP_CHARS-th
+ * char boundary is kept too, as prefix sums of the char advances. Placing
+ * the cursor or finding the part of a long line in view is then a binary
+ * search and measuring at most STOP_CHARS chars, however long the line.
+ *
+ * A segment tree over the widths gives the widest line of the document
+ * in O(1), for the horizontal scroll range. Measuring a line updates it
+ * in O(log n), adding or removing lines rebuilds it from the edited line
+ * on, like the width array is moved. Unknown widths count as 0 until a
+ * Job measures them in the background, which createJob() plans from the
+ * first unknown line on, after loading, a font change, or edits of lines
+ * that are not drawn.
+ *
+ * The edits are mapped to lines through a LineIndex of its own, as the
+ * storage is locked while it calls the OnEditListener. It starts as a
+ * copy of the storage's, the text is not read to find the lines. A storage that is
+ * never edited, such as a MappedTextStorage, is read without tracking
+ * its lines and its widths are not kept. Line numbers are 1-based like
+ * the ones of TextStorage. Not threadsafe, the view uses it on the UI
+ * thread.
+ */
+public class LineWidthCache implements OnEditListener {
+
+    private static final int UNKNOWN = -1;
+    // lines with the x of their char boundaries kept, more than fit
+    // on the screen
+    private static final int STOP_LINES = 64;
+    // chars from one kept x to the next
+    private static final int STOP_CHARS = 64;
+    // chars measured at a time for the stops of a line
+    private static final int MEASURE_CHUNK = 4 * 1024;
+    // lines measured by a job
+    private static final int JOB_LINES = 4000;
+
+    private final Paint _paint;
+    private TextStorage _storage;
+    private boolean _tracked;
+    private final LineIndex _lines = new LineIndex();
+
+    // by line - 1, UNKNOWN until measured
+    private int[] _widths = new int[64];
+    // max of the widths, node i covers nodes 2i and 2i + 1, the width of
+    // line - 1 is at _widths.length + line - 1
+    private int[] _tree = new int[128];
+    // no line before it is UNKNOWN
+    private int _scanLine;
+    // changes with the font, jobs measured with an older one are dropped
+    private int _generation;
+    // a copy of _paint for the jobs, the view keeps changing the color of
+    // _paint while drawing
+    private Paint _jobPaint;
+
+    // x of every STOP_CHARS-th char boundary of the lines _stopLines,
+    // least recently used first out
+    private final int[] _stopLines = new int[STOP_LINES];
+    private final float[][] _stops = new float[STOP_LINES][];
+    private final int[] _stopLengths = new int[STOP_LINES];
+    private final long[] _stopUsed = new long[STOP_LINES];
+    private long _useCount;
+    private final float[] _charWidths = new float[MEASURE_CHUNK];
+
+    private char[] _chars = new char[256];
+
+    public LineWidthCache(Paint paint) {
+        _paint = paint;
+    }
+
+    /**
+     * Starts over with the lines of storage
+     *
+     * @param tracked Whether the edits of storage are passed to the
+     *          OnEditListener methods, false if it is never edited
+     */
+    public void setStorage(TextStorage storage, boolean tracked) {
+        _storage = storage;
+        _tracked = tracked;
+        _lines.clear();
+        if (tracked) {
+            storage.copyLines(_lines);
+            _widths = new int[capacityFor(_lines.getLineCount())];
+            _tree = new int[_widths.length * 2];
+        }
+        invalidate();
+    }
+
+    /**
+     * Forgets all widths, after the text size or the typeface changed
+     */
+    public void invalidate() {
+        Arrays.fill(_widths, UNKNOWN);
+        Arrays.fill(_tree, 0);
+        Arrays.fill(_stopLines, 0);
+        Arrays.fill(_stopUsed, 0);
+        _scanLine = 0;
+        ++_generation;
+        _jobPaint = new Paint(_paint);
+    }
+
+    /**
+     * @return The width of the widest line measured so far, 0 if the lines
+     *          are not tracked
+     */
+    public int getMaxWidth() {
+        return _tree[1];
+    }
+
+    /**
+     * Plans measuring the next JOB_LINES lines from the first unknown one
+     *
+     * @return The job, or null if all lines are measured
+     */
+    public Job createJob() {
+        if (!_tracked) {
+            return null;
+        }
+        int lineCount = _lines.getLineCount();
+        while (_scanLine < lineCount && _widths[_scanLine] != UNKNOWN) {
+            ++_scanLine;
+        }
+        if (_scanLine == lineCount) {
+            return null;
+        }
+
+        int count = Math.min(JOB_LINES, lineCount - _scanLine);
+        return new Job(_jobPaint, _generation, _scanLine, _lines.getLineStart(_scanLine), count);
+    }
+
+    /**
+     * Stores the widths measured by job, which must have been created with
+     * no edits since
+     */
+    public void apply(Job job) {
+        if (job._generation != _generation) {
+            return; // measured with another font
+        }
+        int end = job._firstLine + job._widths.length;
+        for (int line = job._firstLine; line < end; ++line) {
+            if (_widths[line] == UNKNOWN) {
+                _widths[line] = job._widths[line - job._firstLine];
+            }
+        }
+        rebuildTree(job._firstLine, end);
+        if (_scanLine >= job._firstLine) {
+            _scanLine = Math.max(_scanLine, end);
+        }
+    }
+
+    /**
+     * @return The width of the line, without its line break
+     */
+    public int getWidth(int lineNumber) {
+        if (!_tracked) {
+            // measured on every draw, a long line only once from its stops
+            int length = _storage.getLineLength(lineNumber);
+            return length > MEASURE_CHUNK ? getAdvance(lineNumber, length) : measure(lineNumber);
+        }
+        int width = _widths[lineNumber - 1];
+        if (width == UNKNOWN) {
+            width = measure(lineNumber);
+            setWidth(lineNumber - 1, width);
+        }
+        return width;
+    }
+
+    /**
+     * @return The x of the boundary before the char at column of the line,
+     *          from the start of the line
+     */
+    public int getAdvance(int lineNumber, int column) {
+        return (int) Math.ceil(getX(lineNumber, column));
+    }
+
+    /**
+     * @return The x of the boundary before the char at column of the line,
+     *          unrounded for drawing a part of the line from it
+     */
+    public float getX(int lineNumber, int column) {
+        int entry = stopsOf(lineNumber);
+        column = Math.max(0, Math.min(column, _stopLengths[entry]));
+        int stop = column / STOP_CHARS;
+        int from = stop * STOP_CHARS;
+        float x = _stops[entry][stop];
+        if (column > from) {
+            int count = readChars(lineNumber, from, column);
+            _paint.getTextWidths(_chars, 0, count, _charWidths);
+            for (int i = 0; i < count; ++i) {
+                x += _charWidths[i];
+            }
+        }
+        return x;
+    }
+
+    /**
+     * @return The column of the char boundary of the line closest to x,
+     *          counted from the start of the line
+     */
+    public int getColumn(int lineNumber, float x) {
+        int entry = stopsOf(lineNumber);
+        float[] stops = _stops[entry];
+        int length = _stopLengths[entry];
+
+        // the last stop at or before x
+        int low = 0;
+        int high = length / STOP_CHARS;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (stops[mid] <= x) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        // the first boundary after it at or after x, or the one before if
+        // that is as close
+        int column = low * STOP_CHARS;
+        int count = readChars(lineNumber, column, Math.min(length, column + STOP_CHARS));
+        _paint.getTextWidths(_chars, 0, count, _charWidths);
+        float left = stops[low];
+        for (int i = 0; i < count; ++i, ++column) {
+            float right = left + _charWidths[i];
+            if (right >= x) {
+                return x - left <= right - x ? column : column + 1;
+            }
+            left = right;
+        }
+        return column;
+    }
+
+    // a power of 2, so all the leaves of the tree are on one level
+    private static int capacityFor(int lineCount) {
+        return Math.max(64, Integer.highestOneBit(lineCount - 1) << 1);
+    }
+
+    private void setWidth(int line, int width) {
+        _widths[line] = width;
+        int node = _widths.length + line;
+        _tree[node] = width;
+        for (node >>= 1; node > 0; node >>= 1) {
+            _tree[node] = Math.max(_tree[node * 2], _tree[node * 2 + 1]);
+        }
+    }
+
+    /**
+     * Sets the leaves of the lines [from, to) from _widths, as 0 past the
+     * last line, and updates the nodes above them
+     */
+    private void rebuildTree(int from, int to) {
+        int leaves = _widths.length;
+        int lineCount = _lines.getLineCount();
+        for (int line = from; line < to; ++line) {
+            _tree[leaves + line] = line < lineCount ? Math.max(0, _widths[line]) : 0;
+        }
+        int low = (leaves + from) >> 1;
+        int high = (leaves + to - 1) >> 1;
+        while (low > 0) {
+            for (int node = low; node <= high; ++node) {
+                _tree[node] = Math.max(_tree[node * 2], _tree[node * 2 + 1]);
+            }
+            low >>= 1;
+            high >>= 1;
+        }
+    }
+
+    private int measure(int lineNumber) {
+        int length = readLine(lineNumber);
+        return (int) Math.ceil(_paint.measureText(_chars, 0, length));
+    }
+
+    // copy the line to _chars, return its length
+    private int readLine(int lineNumber) {
+        int start = _storage.getLineOffset(lineNumber);
+        int length = _storage.getLineLength(lineNumber);
+        if (length > _chars.length) {
+            _chars = new char[Math.max(length, _chars.length * 2)];
+        }
+        _storage.getChars(start, start + length, _chars, 0);
+        return length;
+    }
+
+    // copy the chars [from, to) of the line to _chars, return their count
+    private int readChars(int lineNumber, int from, int to) {
+        int start = _storage.getLineOffset(lineNumber);
+        _storage.getChars(start + from, start + to, _chars, 0);
+        return to - from;
+    }
+
+    // the entry holding the stops of the line, measured if needed
+    private int stopsOf(int lineNumber) {
+        int entry = 0;
+        for (int i = 0; i < STOP_LINES; ++i) {
+            if (_stopLines[i] == lineNumber) {
+                _stopUsed[i] = ++_useCount;
+                return i;
+            }
+            if (_stopUsed[i] < _stopUsed[entry]) {
+                entry = i;
+            }
+        }
+
+        int length = _storage.getLineLength(lineNumber);
+        float[] stops = _stops[entry];
+        if (stops == null || stops.length <= length / STOP_CHARS) {
+            stops = new float[length / STOP_CHARS + 1];
+            _stops[entry] = stops;
+        }
+        if (_chars.length < MEASURE_CHUNK) {
+            _chars = new char[MEASURE_CHUNK];
+        }
+
+        float x = 0;
+        stops[0] = 0;
+        for (int from = 0; from < length; ) {
+            int count = readChars(lineNumber, from, Math.min(length, from + MEASURE_CHUNK));
+            _paint.getTextWidths(_chars, 0, count, _charWidths);
+            for (int i = 0; i < count; ++i) {
+                x += _charWidths[i];
+                if ((from + i + 1) % STOP_CHARS == 0) {
+                    stops[(from + i + 1) / STOP_CHARS] = x;
+                }
+            }
+            from += count;
+        }
+        _stopLines[entry] = lineNumber;
+        _stopLengths[entry] = length;
+        _stopUsed[entry] = ++_useCount;
+        return entry;
+    }
+
+    @Override
+    public void onInsert(int offset, char[] chars, int start, int count) {
+        int line = _lines.findLine(offset);
+        int newlines = 0;
+        for (int i = start; i < start + count; ++i) {
+            if (chars[i] == '\n') {
+                ++newlines;
+            }
+        }
+        _lines.insert(offset, chars, start, count);
+
+        int used = _lines.getLineCount() - newlines;
+        int rebuildFrom = line;
+        if (newlines > 0) {
+            if (used + newlines > _widths.length) {
+                _widths = Arrays.copyOf(_widths, capacityFor(used + newlines));
+                // the leaves moved
+                _tree = new int[_widths.length * 2];
+                rebuildFrom = 0;
+            }
+            System.arraycopy(_widths, line, _widths, line + newlines, used - line);
+        }
+        Arrays.fill(_widths, line, line + newlines + 1, UNKNOWN);
+        // the lines after the edited one only moved if lines were added
+        rebuildTree(rebuildFrom, newlines > 0 ? used + newlines : line + 1);
+        _scanLine = Math.min(_scanLine, line);
+        editedLines(line, line, newlines);
+    }
+
+    @Override
+    public void onDelete(int start, int end) {
+        int first = _lines.findLine(start);
+        int last = _lines.findLine(end);
+        _lines.delete(start, end);
+
+        int removed = last - first;
+        if (removed > 0) {
+            int used = _lines.getLineCount() + removed;
+            System.arraycopy(_widths, last, _widths, first, used - last);
+        }
+        _widths[first] = UNKNOWN;
+        rebuildTree(first, removed > 0 ? _lines.getLineCount() + removed : first + 1);
+        _scanLine = Math.min(_scanLine, first);
+        editedLines(first, last, -removed);
+    }
+
+    // drop the stops of the 0-based lines [first, last], which were
+    // edited, and move the ones after by shift lines
+    private void editedLines(int first, int last, int shift) {
+        for (int i = 0; i < STOP_LINES; ++i) {
+            int line = _stopLines[i] - 1;
+            if (line < 0 || line < first) {
+                continue;
+            }
+            if (line <= last) {
+                _stopLines[i] = 0;
+                _stopUsed[i] = 0;
+            } else {
+                _stopLines[i] += shift;
+            }
+        }
+    }
+
+    /**
+     * Measures count lines from the first one, on any thread
+     */
+    public static class Job implements TextJob {
+        private final Paint _paint;
+        private final int _generation;
+        private final int _firstLine;
+        private final int _firstOffset;
+        private final int[] _widths;
+        private volatile boolean _cancelled;
+
+        Job(Paint paint, int generation, int firstLine, int firstOffset, int count) {
+            _paint = paint;
+            _generation = generation;
+            _firstLine = firstLine;
+            _firstOffset = firstOffset;
+            _widths = new int[count];
+        }
+
+        @Override
+        public void cancel() {
+            _cancelled = true;
+        }
+
+        @Override
+        public boolean run(TextStorage storage, TextSnapshot text) {
+            LineReader reader = new LineReader(text, _firstOffset);
+            for (int i = 0; i < _widths.length && reader.next(); ++i) {
+                if (_cancelled || ((i & 0xff) == 0 && storage.getVersion() != text.getVersion())) {
+                    return false;
+                }
+                int start = reader.getStart();
+                int end = reader.getEnd();
+                // getLineLength() leaves out the \r of a \r\n line ending
+                if (!reader.isLast() && end > start && reader.getChars()[end - 1] == '\r') {
+                    --end;
+                }
+                _widths[i] = (int) Math.ceil(_paint.measureText(reader.getChars(), start, end - start));
+            }
+            return !_cancelled;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.text.edit;
+
+/**
+ * Finds the occurrences of a plain string, optionally ignoring case,
+ * without the cost of a regex Pattern.
+ *
+ * Uses Boyer-Moore-Horspool: the pattern is compared from its last char
+ * and on a mismatch the search skips ahead by the distance the text char
+ * under the pattern end has to the end of the pattern. The skip table is
+ * indexed by the low 8 bits of a char, chars sharing them get the smallest
+ * of their shifts.
+ *
+ * find() scans the raw array of a GapBuffer on both sides of the gap, only
+ * the few positions where a match would cross the gap are compared one
+ * char at a time. Matches do not overlap and are added to an IntList as
+ * start and end offset pairs.
+ */
+public class LiteralSearch {
+
+    private final char[] _pattern;
+    private final boolean _ignoreCase;
+    private final int[] _shift = new int[256];
+
+    public LiteralSearch(String pattern, boolean ignoreCase) {
+        _pattern = pattern.toCharArray();
+        _ignoreCase = ignoreCase;
+        int length = _pattern.length;
+        if (ignoreCase) {
+            for (int i = 0; i < length; ++i) {
+                _pattern[i] = fold(_pattern[i]);
+            }
+        }
+
+        for (int i = 0; i < _shift.length; ++i) {
+            _shift[i] = length;
+        }
+        // later chars overwrite with a smaller shift
+        for (int i = 0; i < length - 1; ++i) {
+            _shift[_pattern[i] & 0xff] = length - 1 - i;
+        }
+    }
+
+    public int length() {
+        return _pattern.length;
+    }
+
+    /**
+     * Finds the matches starting in [from, to) of the text held by
+     * contents around the gap [gapStart, gapEnd). A match may run past to.
+     *
+     * @return The offset to continue searching from
+     */
+    public int find(char[] contents, int gapStart, int gapEnd, 
+                    int from, int to, IntList result) {
+        int m = _pattern.length;
+        int gapLength = gapEnd - gapStart;
+        int length = contents.length - gapLength;
+        // the end of the last match, if past to
+        int resume = to;
+        to = Math.min(to, length - m + 1);
+        if (m == 0) {
+            return resume;
+        }
+
+        int next = from;
+        // entirely before the gap
+        int last = Math.min(to, gapStart - m + 1);
+        while (next < last) {
+            int start = find(contents, next, last);
+            if (start < 0) {
+                break;
+            }
+            result.add(start);
+            result.add(start + m);
+            next = start + m;
+            resume = Math.max(resume, next);
+        }
+
+        // across the gap
+        next = Math.max(next, Math.max(0, gapStart - m + 1));
+        last = Math.min(to, gapStart);
+        for (; next < last; ++next) {
+            if (matchesAcross(contents, next, gapStart, gapLength)) {
+                result.add(next);
+                result.add(next + m);
+                resume = Math.max(resume, next + m);
+                next += m - 1;
+            }
+        }
+
+        // entirely after the gap, searched in array positions
+        next = Math.max(next, gapStart);
+        while (next < to) {
+            int start = find(contents, next + gapLength, to + gapLength);
+            if (start < 0) {
+                break;
+            }
+            start -= gapLength;
+            result.add(start);
+            result.add(start + m);
+            next = start + m;
+            resume = Math.max(resume, next);
+        }
+        return resume;
+    }
+
+    /**
+     * Finds the matches starting in [from, to) of any text
+     *
+     * @return The offset to continue searching from
+     */
+    public int find(CharSequence text, int from, int to, IntList result) {
+        int m = _pattern.length;
+        int resume = to;
+        to = Math.min(to, text.length() - m + 1);
+        if (m == 0) {
+            return resume;
+        }
+
+        int next = from;
+        while (next < to) {
+            char c = text.charAt(next + m - 1);
+            int i = m - 1;
+            while (i >= 0 && (_ignoreCase ? fold(c) : c) == _pattern[i]) {
+                if (--i >= 0) {
+                    c = text.charAt(next + i);
+                }
+            }
+            if (i < 0) {
+                result.add(next);
+                result.add(next + m);
+                next += m;
+                resume = Math.max(resume, next);
+            } else {
+                char end = text.charAt(next + m - 1);
+                next += _shift[(_ignoreCase ? fold(end) : end) & 0xff];
+            }
+        }
+        return resume;
+    }
+
+    /**
+     * @return The first match starting in [from, to) of chars, or -1
+     */
+    private int find(char[] chars, int from, int to) {
+        char[] pattern = _pattern;
+        int[] shift = _shift;
+        int m = pattern.length;
+        int lastChar = pattern[m - 1];
+
+        if (_ignoreCase) {
+            for (int pos = from; pos < to;) {
+                char end = fold(chars[pos + m - 1]);
+                if (end == lastChar) {
+                    int i = m - 2;
+                    while (i >= 0 && fold(chars[pos + i]) == pattern[i]) {
+                        --i;
+                    }
+                    if (i < 0) {
+                        return pos;
+                    }
+                }
+                pos += shift[end & 0xff];
+            }
+        } else {
+            for (int pos = from; pos < to;) {
+                char end = chars[pos + m - 1];
+                if (end == lastChar) {
+                    int i = m - 2;
+                    while (i >= 0 && chars[pos + i] == pattern[i]) {
+                        --i;
+                    }
+                    if (i < 0) {
+                        return pos;
+                    }
+                }
+                pos += shift[end & 0xff];
+            }
+        }
+        return -1;
+    }
+
+    private boolean matchesAcross(char[] contents, int start, int gapStart, int gapLength) {
+        for (int i = 0; i < _pattern.length; ++i) {
+            int index = start + i;
+            char c = contents[index < gapStart ? index : index + gapLength];
+            if ((_ignoreCase ? fold(c) : c) != _pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the case folding of String.regionMatches(true, ...)
+    private static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
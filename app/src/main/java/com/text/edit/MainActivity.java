@@ -25,15 +25,12 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import com.text.edit.R;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import org.mozilla.universalchardet.UniversalDetector;
 
@@ -46,9 +43,25 @@ public class MainActivity extends AppCompatActivity {
     private SharedPreferences mSharedPreference;
     private Charset mDefaultCharset = StandardCharsets.UTF_8;
     private String externalPath = File.separator;
+    // the file shown in the text view, saved back by menu_save
+    private String mFilePath;
+    // unsaved edits of mFilePath, replayed when it is opened again
+    private EditJournal mJournal;
 
     private final String TAG = this.getClass().getSimpleName();
 
+    // files larger than 1/MAPPED_HEAP_FRACTION of the heap are
+    // opened read-only through a memory mapped storage
+    private final int MAPPED_HEAP_FRACTION = 4;
+
+    // the journal is forced to storage once typing pauses this long
+    private final int JOURNAL_FLUSH_DELAY = 2000;
+
+    private final Runnable mFlushJournal = () -> {
+        if(mJournal != null)
+            mJournal.flush();
+    };
+
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -74,7 +87,8 @@ public class MainActivity extends AppCompatActivity {
         mTextView.setTypeface(Typeface.MONOSPACE);
         mTextView.setOnTextChangedListener(() -> {
             mHandler.sendEmptyMessage(0);
-            mTextView.postInvalidate();
+            mHandler.removeCallbacks(mFlushJournal);
+            mHandler.postDelayed(mFlushJournal, JOURNAL_FLUSH_DELAY);
         });
 
         mSharedPreference = PreferenceManager.getDefaultSharedPreferences(this);
@@ -113,10 +127,41 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void toggleEditMode() {
+        if(mTextView.getBuffer() instanceof MappedTextStorage) {
+            Toast.makeText(this, "large file is opened read-only", Toast.LENGTH_SHORT).show();
+            return;
+        }
         mTextView.setEditedMode(!mTextView.getEditedMode());
         mHandler.sendEmptyMessage(0);
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // the process may be killed from now on
+        mFlushJournal.run();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if(mJournal != null) {
+            // forced and closed in the background
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    // one journal per file path, in the app cache
+    private Path getJournalPath(Path path) {
+        String name = Integer.toHexString(path.toAbsolutePath().toString().hashCode());
+        return getCacheDir().toPath().resolve("journal-" + name);
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         // TODO: Implement this method
@@ -176,11 +221,22 @@ public class MainActivity extends AppCompatActivity {
         case R.id.menu_settings:
             break;
         case R.id.menu_save:
+            saveFile();
             break;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    private void saveFile() {
+        if(mFilePath == null) {
+            Toast.makeText(getApplicationContext(), "no file opened", Toast.LENGTH_SHORT).show();
+        } else if(mTextView.getBuffer() instanceof MappedTextStorage) {
+            Toast.makeText(getApplicationContext(), "large files are read-only", Toast.LENGTH_SHORT).show();
+        } else {
+            new WriteFileThread().execute(mFilePath);
+        }
+    }
+
     private void showGotoLineDialog() {
         final View v = getLayoutInflater().inflate(R.layout.dialog_gotoline, null);
         final EditText lineEdit = v.findViewById(R.id.lineEdit);
@@ -230,34 +286,63 @@ public class MainActivity extends AppCompatActivity {
     // read file
     class ReadFileThread extends AsyncTask<String, Integer, Boolean> {
 
+        private TextStorage mStorage;
+        private String mLineSeparator = "\n";
+        private String mPath;
+        private EditJournal mNewJournal;
+        private int mRecovered;
+        private String mError;
+
         @Override
         protected void onPreExecute() {
             // TODO: Implement this method
             super.onPreExecute();
             mTextView.setEditedMode(false);
             mHandler.sendEmptyMessage(0);
+            mIndeterminateBar.setProgress(0);
             mIndeterminateBar.setVisibility(View.VISIBLE);
         }
 
+        @Override
+        protected void onProgressUpdate(Integer...values) {
+            super.onProgressUpdate(values);
+            mIndeterminateBar.setProgress(values[0]);
+        }
+
         @Override
         protected Boolean doInBackground(String...params) {
             // TODO: Implement this method
             Path path = Paths.get(params[0]);
-            GapBuffer buffer = mTextView.getBuffer();
-            buffer.delete(0, buffer.length(), false);
+            mPath = params[0];
             try {
                 // detect the file charset
                 String charset = UniversalDetector.detectCharset(path.toFile());
                 if(charset != null) 
                     mDefaultCharset = Charset.forName(charset);
-                // create buffered reader
-                BufferedReader br = Files.newBufferedReader(path, mDefaultCharset);
-                String text = null;
-                while((text = br.readLine()) != null) {
-                    buffer.append(text).append("\n");
+
+                if(Files.size(path) > Runtime.getRuntime().maxMemory() / MAPPED_HEAP_FRACTION) {
+                    if(!MappedTextStorage.isSupported(mDefaultCharset)) {
+                        // its blocks cannot be decoded on their own
+                        mError = mDefaultCharset.name() + " is not supported for large files";
+                        return false;
+                    }
+                    // decoded on demand, the line index is built in background
+                    mStorage = new MappedTextStorage(path, mDefaultCharset);
+                    return true;
                 }
-                // close the stream
-                br.close();
+
+                GapBuffer buffer = new GapBuffer();
+                TextFileLoader loader = new TextFileLoader(path, mDefaultCharset);
+                loader.load(buffer, (done, total) -> {
+                    publishProgress(total > 0 ? (int) (done * 100 / total) : 100);
+                });
+                mLineSeparator = loader.getLineSeparator();
+
+                // bring back the edits that were not saved last time
+                mNewJournal = new EditJournal(getJournalPath(path), path);
+                mRecovered = mNewJournal.replay(buffer);
+                buffer.addOnEditListener(mNewJournal);
+                mStorage = buffer;
             } catch(Exception e) {
                 e.printStackTrace();
             }
@@ -269,7 +354,45 @@ public class MainActivity extends AppCompatActivity {
         protected void onPostExecute(Boolean result) {
             // TODO: Implement this method
             super.onPostExecute(result);
-            mTextView.setEditedMode(true);
+            if(mStorage != null) {
+                TextStorage old = mTextView.getBuffer();
+                if(old instanceof MappedTextStorage)
+                    ((MappedTextStorage) old).close();
+                mTextView.setBuffer(mStorage);
+                mTextView.setLineSeparator(mLineSeparator);
+                // mapped files are too large to lex
+                if(!(mStorage instanceof MappedTextStorage))
+                    mTextView.setTokenizer(CLikeTokenizer.forFileName(mPath));
+                mFilePath = mPath;
+
+                closeJournal();
+                mJournal = mNewJournal;
+                if(mRecovered > 0) {
+                    Toast.makeText(getApplicationContext(), "recovered " + mRecovered + " unsaved edits", 
+                                   Toast.LENGTH_SHORT).show();
+                }
+            }
+
+            if(mError != null) {
+                Toast.makeText(getApplicationContext(), mError, Toast.LENGTH_LONG).show();
+            }
+
+            if(mStorage instanceof MappedTextStorage) {
+                // read-only, redraw as the index grows
+                final MappedTextStorage storage = (MappedTextStorage) mStorage;
+                storage.startIndexing((done, total) -> mTextView.post(() -> {
+                    if(mTextView.getBuffer() != storage)
+                        return; // another file was opened meanwhile
+                    boolean complete = done == total;
+                    mTextView.onTextAppended(complete);
+                    if(complete && storage.isTruncated()) {
+                        Toast.makeText(getApplicationContext(), "file too large, only its start is shown", 
+                                       Toast.LENGTH_LONG).show();
+                    }
+                }));
+            } else {
+                mTextView.setEditedMode(true);
+            }
             mHandler.sendEmptyMessage(0);
             mIndeterminateBar.setVisibility(View.GONE);
         }
@@ -278,20 +401,39 @@ public class MainActivity extends AppCompatActivity {
     // write file
     class WriteFileThread extends AsyncTask<String, Integer, Boolean> {
 
+        // the version of the buffer when the save started
+        private long mVersion;
+
+        @Override
+        protected void onPreExecute() {
+            super.onPreExecute();
+            // the buffer is written from a snapshot, the edits made
+            // meanwhile would not be saved
+            mTextView.setEditedMode(false);
+            mVersion = mTextView.getBuffer().getVersion();
+            mIndeterminateBar.setProgress(0);
+            mIndeterminateBar.setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer...values) {
+            super.onProgressUpdate(values);
+            mIndeterminateBar.setProgress(values[0]);
+        }
+
         @Override
         protected Boolean doInBackground(String...params) {
             // TODO: Implement this method
             Path path = Paths.get(params[0]);
             
             try {
-                BufferedWriter bufferWrite = null;
-                bufferWrite = Files.newBufferedWriter(path, mDefaultCharset, 
-                                                      StandardOpenOption.WRITE);
-                bufferWrite.write(mTextView.getBuffer().toString());     
-                bufferWrite.flush();
-                bufferWrite.close();
+                TextFileWriter writer = new TextFileWriter(path, mDefaultCharset);
+                writer.save(mTextView.getBuffer(), (done, total) -> {
+                    publishProgress(total > 0 ? (int) (done * 100 / total) : 100);
+                });
             } catch(Exception e) {
                 e.printStackTrace();
+                return false;
             }
             return true;
         }
@@ -300,7 +442,21 @@ public class MainActivity extends AppCompatActivity {
         protected void onPostExecute(Boolean result) {
             // TODO: Implement this method
             super.onPostExecute(result);
-            Toast.makeText(getApplicationContext(), "saved success!", Toast.LENGTH_SHORT).show();
+            // an edit made while saving may have missed the file
+            boolean complete = mTextView.getBuffer().getVersion() == mVersion;
+            if(result && complete && mJournal != null) {
+                try {
+                    // the saved file holds the journaled edits now
+                    mJournal.checkpoint();
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            mTextView.setEditedMode(true);
+            mIndeterminateBar.setVisibility(View.GONE);
+            String message = !result ? "save failed!"
+                : complete ? "saved success!" : "saved, but the text changed meanwhile, save again";
+            Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
         }
     }
 }
@@ -0,0 +1,591 @@
+package com.text.edit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * MappedTextStorage is a threadsafe, read-only TextStorage for files that
+ * do not fit in the heap.
+ *
+ * The file is memory mapped and decoded in blocks of BLOCK_SIZE chars on
+ * demand, only the last CACHED_BLOCKS decoded blocks are kept. A
+ * background thread decodes the file once to record where each block
+ * starts and the offset of every LINE_STRIDE-th line, so the heap used
+ * stays a small fraction of the file size. Until indexing is done,
+ * length() and getLineCount() only cover the part indexed so far.
+ *
+ * The decoder must be stateless across blocks, which holds for UTF-8,
+ * ASCII and the single byte charsets, see isSupported(). Offsets are
+ * ints, so indexing stops before the text would pass Integer.MAX_VALUE
+ * chars, and isTruncated() tells the rest of the file is not shown.
+ *
+ * The text is never edited, so getVersion() does not change. More of it
+ * becomes visible while indexing, which the listener of startIndexing()
+ * is told about instead.
+ */
+public class MappedTextStorage implements TextStorage {
+
+    // chars per decoded block
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // decoded blocks kept in memory
+    private static final int CACHED_BLOCKS = 8;
+    // the start of every LINE_STRIDE-th line is recorded
+    private static final int LINE_STRIDE = 64;
+    // bytes mapped at a time while indexing
+    private static final int MAP_WINDOW = 32 * 1024 * 1024;
+
+    private static final char NEWLINE = '\n';
+
+    private final FileChannel _channel;
+    private final Charset _charset;
+    private final long _fileSize;
+
+    // byte offset where each block starts and ends, char offset where it
+    // starts
+    private long[] _blockBytes = new long[64];
+    private long[] _blockByteEnds = new long[64];
+    private int[] _blockChars = new int[64];
+    private int _blockCount;
+
+    // char offset of the lines 0, LINE_STRIDE, 2 * LINE_STRIDE...
+    private int[] _lineStarts = new int[64];
+    private int _lineCount = 1;
+    private int _length;
+
+    // most recently used decoded blocks first
+    private int[] _cachedIndex = new int[CACHED_BLOCKS];
+    private char[][] _cachedChars = new char[CACHED_BLOCKS][];
+
+    private volatile boolean _closed;
+    private volatile boolean _indexed;
+    private volatile boolean _truncated;
+    private Thread _indexer;
+
+    public MappedTextStorage(Path path, Charset charset) throws IOException {
+        _channel = FileChannel.open(path, StandardOpenOption.READ);
+        _charset = charset;
+        _fileSize = _channel.size();
+        Arrays.fill(_cachedIndex, -1);
+    }
+
+    /**
+     * Starts building the block and line index in the background.
+     *
+     * @param listener Notified with the bytes indexed so far, may be null
+     */
+    public synchronized void startIndexing(final OnProgressListener listener) {
+        if (_indexer != null) {
+            return;
+        }
+
+        _indexer = new Thread(() -> {
+            try {
+                buildIndex(listener);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "MappedTextStorage");
+        _indexer.setPriority(Thread.MIN_PRIORITY);
+        _indexer.start();
+    }
+
+    public boolean isIndexed() {
+        return _indexed;
+    }
+
+    /**
+     * @return Whether indexing stopped at Integer.MAX_VALUE chars, before
+     *          the end of the file
+     */
+    public boolean isTruncated() {
+        return _truncated;
+    }
+
+    /**
+     * @return Whether blocks of text in charset can be decoded on their
+     *          own, which a charset keeping state from one char to the
+     *          next or depending on a byte order mark does not allow
+     */
+    public static boolean isSupported(Charset charset) {
+        String name = charset.name().toUpperCase(Locale.ROOT);
+        return !name.startsWith("UTF-16") && !name.startsWith("UTF-32")
+            && !name.startsWith("ISO-2022") && !name.startsWith("UTF-7")
+            && !name.startsWith("HZ") && !name.startsWith("X-UTF-16")
+            && !name.startsWith("X-UTF-32");
+    }
+
+    /**
+     * Stops indexing and releases the file
+     */
+    public void close() {
+        _closed = true;
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void buildIndex(OnProgressListener listener) throws IOException {
+        CharsetDecoder decoder = newDecoder();
+        CharBuffer out = CharBuffer.allocate(BLOCK_SIZE);
+
+        long windowStart = 0;
+        long blockStart = 0;
+        ByteBuffer in = map(windowStart, Math.min(MAP_WINDOW, _fileSize));
+
+        while (!_closed) {
+            boolean endOfInput = windowStart + in.limit() == _fileSize;
+            CoderResult result = decoder.decode(in, out, endOfInput);
+
+            if (result.isOverflow()) {
+                long blockEnd = windowStart + in.position();
+                if (!addBlock(blockStart, blockEnd, out)) {
+                    break;
+                }
+                blockStart = blockEnd;
+            } else if (endOfInput) {
+                decoder.flush(out);
+                addBlock(blockStart, _fileSize, out);
+                break;
+            } else {
+                // map the next window, starting with the unconsumed bytes
+                windowStart += in.position();
+                in = map(windowStart, Math.min(MAP_WINDOW, _fileSize - windowStart));
+                if (listener != null) {
+                    listener.onProgress(windowStart, _fileSize);
+                }
+            }
+        }
+
+        _indexed = true;
+        if (listener != null) {
+            listener.onProgress(_fileSize, _fileSize);
+        }
+    }
+
+    /**
+     * Adds the chars decoded from the bytes [byteStart, byteEnd) as the
+     * next block
+     *
+     * @return false if they would take the text past Integer.MAX_VALUE
+     *          chars, then indexing stops
+     */
+    private synchronized boolean addBlock(long byteStart, long byteEnd, CharBuffer chars) {
+        int count = chars.position();
+        if (count == 0) {
+            return true;
+        }
+        if (count > Integer.MAX_VALUE - _length) {
+            _truncated = true;
+            return false;
+        }
+
+        if (_blockCount == _blockBytes.length) {
+            _blockBytes = Arrays.copyOf(_blockBytes, _blockCount * 2);
+            _blockByteEnds = Arrays.copyOf(_blockByteEnds, _blockCount * 2);
+            _blockChars = Arrays.copyOf(_blockChars, _blockCount * 2);
+        }
+        _blockBytes[_blockCount] = byteStart;
+        _blockByteEnds[_blockCount] = byteEnd;
+        _blockChars[_blockCount] = _length;
+        _blockCount++;
+
+        char[] array = chars.array();
+        for (int i = 0; i < count; ++i) {
+            if (array[i] == NEWLINE) {
+                if (_lineCount % LINE_STRIDE == 0) {
+                    int stride = _lineCount / LINE_STRIDE;
+                    if (stride == _lineStarts.length) {
+                        _lineStarts = Arrays.copyOf(_lineStarts, stride * 2);
+                    }
+                    _lineStarts[stride] = _length + i + 1;
+                }
+                _lineCount++;
+            }
+        }
+        _length += count;
+        chars.clear();
+        return true;
+    }
+
+    private ByteBuffer map(long position, long size) throws IOException {
+        return _channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private CharsetDecoder newDecoder() {
+        return _charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Gets the decoded chars of a block, decoding it if it is not cached
+     */
+    private char[] getBlock(int block) {
+        for (int i = 0; i < CACHED_BLOCKS; ++i) {
+            if (_cachedIndex[i] == block) {
+                char[] chars = _cachedChars[i];
+                makeHead(i, block, chars);
+                return chars;
+            }
+        }
+
+        int start = _blockChars[block];
+        int end = block + 1 < _blockCount ? _blockChars[block + 1] : _length;
+        long byteStart = _blockBytes[block];
+        long byteEnd = _blockByteEnds[block];
+
+        // reuse the array of the least recently used block when possible
+        char[] chars = _cachedChars[CACHED_BLOCKS - 1];
+        if (chars == null || chars.length != end - start) {
+            chars = new char[end - start];
+        }
+
+        _cachedIndex[CACHED_BLOCKS - 1] = -1;
+        try {
+            CharsetDecoder decoder = newDecoder();
+            CharBuffer out = CharBuffer.wrap(chars);
+            CoderResult result = decoder.decode(map(byteStart, byteEnd - byteStart), out, true);
+            if (result.isUnderflow()) {
+                result = decoder.flush(out);
+            }
+            if (!result.isUnderflow() || out.hasRemaining()) {
+                // the file changed since it was indexed
+                throw new IllegalStateException("block " + block + " decoded to another length");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read the mapped file", e);
+        }
+
+        makeHead(CACHED_BLOCKS - 1, block, chars);
+        return chars;
+    }
+
+    private void makeHead(int position, int block, char[] chars) {
+        for (int i = position; i > 0; --i) {
+            _cachedIndex[i] = _cachedIndex[i - 1];
+            _cachedChars[i] = _cachedChars[i - 1];
+        }
+        _cachedIndex[0] = block;
+        _cachedChars[0] = chars;
+    }
+
+    /**
+     * Finds the block that contains charOffset
+     */
+    private int findBlock(int charOffset) {
+        int low = 0;
+        int high = _blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (_blockChars[mid] <= charOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Counts the '\n' in [start, end), stopping after maxCount of them.
+     *
+     * @return The offset after the maxCount-th '\n', or start if there
+     *          are fewer, in the high 32 bits and the count in the low 32 bits
+     */
+    private long scanNewlines(int start, int end, int maxCount) {
+        int count = 0;
+        int offset = start;
+        while (offset < end && count < maxCount) {
+            int block = findBlock(offset);
+            char[] chars = getBlock(block);
+            int blockStart = _blockChars[block];
+            int limit = Math.min(end - blockStart, chars.length);
+            for (int i = offset - blockStart; i < limit; ++i) {
+                if (chars[i] == NEWLINE && ++count == maxCount) {
+                    return ((long) (blockStart + i + 1) << 32) | count;
+                }
+            }
+            offset = blockStart + limit;
+        }
+        return ((long) start << 32) | count;
+    }
+
+    @Override
+    public synchronized String getLine(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        return substring(start, start + getLineLength(lineNumber));
+    }
+
+    @Override
+    public synchronized int getLineOffset(int lineNumber) {
+        if (lineNumber <= 0 || lineNumber > getLineCount()) {
+            throw new IllegalArgumentException("line index is invalid");
+        }
+
+        int lineIndex = lineNumber - 1;
+        int stride = lineIndex / LINE_STRIDE;
+        int remain = lineIndex - stride * LINE_STRIDE;
+        int start = _lineStarts[stride];
+        if (remain == 0) {
+            return start;
+        }
+        return (int) (scanNewlines(start, _length, remain) >>> 32);
+    }
+
+    @Override
+    public synchronized int getLineLength(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        if (lineNumber == getLineCount()) {
+            return _length - start;
+        }
+        int next = (int) (scanNewlines(start, _length, 1) >>> 32);
+        int lineLength = next - start - 1;
+        // exclude the \r of a \r\n line ending
+        if (lineLength > 0 && charAt(next - 2) == '\r') {
+            --lineLength;
+        }
+        return lineLength;
+    }
+
+    @Override
+    public synchronized int findLineNumber(int charOffset) {
+        int strides = (_lineCount + LINE_STRIDE - 1) / LINE_STRIDE;
+        int low = 0;
+        int high = strides - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (_lineStarts[mid] <= charOffset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        int count = (int) scanNewlines(_lineStarts[low], charOffset, Integer.MAX_VALUE);
+        return low * LINE_STRIDE + count + 1;
+    }
+
+    @Override
+    public synchronized int getLineCount() {
+        return _lineCount;
+    }
+
+    @Override
+    public synchronized int length() {
+        return _length;
+    }
+
+    @Override
+    public synchronized char charAt(int index) {
+        int block = findBlock(index);
+        return getBlock(block)[index - _blockChars[block]];
+    }
+
+    @Override
+    public synchronized CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    @Override
+    public synchronized String substring(int start, int end) {
+        end = Math.min(end, _length);
+        char[] chars = new char[Math.max(0, end - start)];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public synchronized long getChars(int start, int end, char[] dst, int dstBegin) {
+        if (start < 0 || end > _length) {
+            throw new IndexOutOfBoundsException("invalid range [" + start + ", " + end + ")");
+        }
+        int offset = start;
+        while (offset < end) {
+            int block = findBlock(offset);
+            char[] blockChars = getBlock(block);
+            int skip = offset - _blockChars[block];
+            int count = Math.min(blockChars.length - skip, end - offset);
+            System.arraycopy(blockChars, skip, dst, dstBegin + offset - start, count);
+            offset += count;
+        }
+        return getVersion();
+    }
+
+    /**
+     * The text is never edited, so the version never changes. The part
+     * indexed so far only grows at its end, which keeps the results found
+     * in it valid.
+     */
+    @Override
+    public long getVersion() {
+        return 0;
+    }
+
+    /**
+     * Only the start of every LINE_STRIDE-th line is known
+     */
+    @Override
+    public void copyLines(LineIndex lines) {
+        throw new UnsupportedOperationException("lines are not indexed in full");
+    }
+
+    /**
+     * The text is read-only, a snapshot only pins the length indexed so far
+     */
+    @Override
+    public synchronized TextSnapshot snapshot() {
+        final int length = _length;
+        final long version = getVersion();
+        return new TextSnapshot() {
+            @Override
+            public long getVersion() {
+                return version;
+            }
+
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (index < 0 || index >= length) {
+                    throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+                }
+                return MappedTextStorage.this.charAt(index);
+            }
+
+            @Override
+            public void getChars(int start, int end, char[] dst, int dstBegin) {
+                if (start < 0 || end > length || start > end) {
+                    throw new IndexOutOfBoundsException("invalid range [" + start + ", " + end + ")");
+                }
+                MappedTextStorage.this.getChars(start, end, dst, dstBegin);
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return substring(start, end);
+            }
+
+            @Override
+            public String toString() {
+                return substring(0, length);
+            }
+
+            @Override
+            public void release() {
+            }
+        };
+    }
+
+    @Override
+    public synchronized String toString() {
+        return substring(0, _length);
+    }
+
+    /**
+     * Writes the text block by block from the decoded block cache, up to
+     * the length indexed when it starts, like a snapshot, so the blocks
+     * indexed meanwhile do not go into the file
+     */
+    @Override
+    public void writeTo(TextFileWriter writer) throws IOException {
+        int length;
+        synchronized (this) {
+            length = _length;
+        }
+
+        int offset = 0;
+        while (offset < length) {
+            synchronized (this) {
+                int block = findBlock(offset);
+                char[] chars = getBlock(block);
+                int skip = offset - _blockChars[block];
+                int count = Math.min(chars.length - skip, length - offset);
+                writer.write(chars, skip, count);
+                offset += count;
+            }
+        }
+    }
+
+    @Override
+    public TextStorage insert(int offset, String str, boolean capture) {
+        throw new UnsupportedOperationException("text is read-only");
+    }
+
+    @Override
+    public TextStorage delete(int start, int end, boolean capture) {
+        throw new UnsupportedOperationException("text is read-only");
+    }
+
+    @Override
+    public TextStorage replace(int start, int end, String str, boolean capture) {
+        throw new UnsupportedOperationException("text is read-only");
+    }
+
+    @Override
+    public TextStorage replaceAll(int[] starts, int[] ends, int count, 
+                                  String str, boolean capture) {
+        throw new UnsupportedOperationException("text is read-only");
+    }
+
+    @Override
+    public void addOnEditListener(OnEditListener listener) {
+        // read-only, never edited
+    }
+
+    @Override
+    public void removeOnEditListener(OnEditListener listener) {
+    }
+
+    @Override
+    public TextStorage append(String str) {
+        throw new UnsupportedOperationException("text is read-only");
+    }
+
+    @Override
+    public boolean canUndo() {
+        return false;
+    }
+
+    @Override
+    public boolean canRedo() {
+        return false;
+    }
+
+    @Override
+    public int undo() {
+        return -1;
+    }
+
+    @Override
+    public int redo() {
+        return -1;
+    }
+
+    @Override
+    public void beginBatchEdit() {
+    }
+
+    @Override
+    public void endBatchEdit() {
+    }
+
+    @Override
+    public boolean isBatchEdit() {
+        return false;
+    }
+}
@@ -0,0 +1,377 @@
+package com.text.edit;
+
+import java.util.Arrays;
+
+/**
+ * The sorted, non-overlapping ranges found by a search, kept in step
+ * with the edits of the text they were found in.
+ *
+ * Ranges live in primitive arrays in text order. An edit shifts all the
+ * ranges after it, which is a single point update of a Fenwick tree of
+ * shifts: the actual start of range i is _starts[i] plus the sum of the
+ * shifts added at indices <= i. Only the k ranges the edit touches are
+ * visited, they are removed by collapsing them to an empty range at
+ * their start and marking them dead, which keeps the starts sorted. So
+ * an edit costs O(log^2 n + k log n). The dead ranges are dropped once
+ * they outnumber the live ones.
+ *
+ * Indices passed to and returned from the queries are slots that may
+ * hold dead ranges, they stay valid until the next change of the store.
+ * Not threadsafe, the view uses it on the UI thread.
+ */
+public class MatchStore implements OnEditListener {
+
+    private int[] _starts = new int[64];
+    private int[] _ends = new int[64];
+    private boolean[] _dead = new boolean[64];
+    // Fenwick tree of shifts, 1-based
+    private int[] _tree = new int[65];
+    private int _size;
+    private int _deadCount;
+
+    /**
+     * @return The number of live ranges
+     */
+    public int size() {
+        return _size - _deadCount;
+    }
+
+    public boolean isEmpty() {
+        return _size == _deadCount;
+    }
+
+    public void clear() {
+        Arrays.fill(_tree, 0);
+        Arrays.fill(_dead, 0, _size, false);
+        _size = 0;
+        _deadCount = 0;
+    }
+
+    /**
+     * Adds count sorted ranges that do not overlap the stored ones
+     */
+    public void add(int[] starts, int[] ends, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        if (_size == 0 || starts[0] >= getEnd(_size - 1)) {
+            // found in text order, append
+            ensureCapacity(_size + count);
+            int shift = prefix(_size);
+            for (int i = 0; i < count; ++i) {
+                _starts[_size] = starts[i] - shift;
+                _ends[_size] = ends[i] - shift;
+                _dead[_size] = false;
+                _size++;
+            }
+            return;
+        }
+
+        // fill the dead slots where the batch goes if there are enough,
+        // as after re-finding in an edited range
+        int index = lowerBound(starts[0]);
+        int holeStart = index;
+        while (holeStart > 0 && _dead[holeStart - 1]) {
+            holeStart--;
+        }
+        int holeEnd = index;
+        while (holeEnd < _size && _dead[holeEnd]) {
+            holeEnd++;
+        }
+        if (holeEnd - holeStart >= count) {
+            for (int i = 0; i < count; ++i) {
+                int shift = prefix(holeStart + i);
+                _starts[holeStart + i] = starts[i] - shift;
+                _ends[holeStart + i] = ends[i] - shift;
+                _dead[holeStart + i] = false;
+            }
+            _deadCount -= count;
+            for (int i = holeStart + count; i < holeEnd; ++i) {
+                collapse(i, ends[count - 1]);
+            }
+            return;
+        }
+
+        // a wrapped around batch, merge it in
+        rebuild(starts, ends, count);
+    }
+
+    public int getStart(int index) {
+        return _starts[index] + prefix(index);
+    }
+
+    public int getEnd(int index) {
+        return _ends[index] + prefix(index);
+    }
+
+    /**
+     * Removes the range at index
+     */
+    public void remove(int index) {
+        if (!_dead[index]) {
+            kill(index, getStart(index));
+            compactIfSparse();
+        }
+    }
+
+    /**
+     * Removes the ranges overlapping [from, to), and the empty ones in it
+     */
+    public void removeRange(int from, int to) {
+        int index = lowerBound(from);
+        int previous = previousLive(index - 1);
+        if (previous >= 0 && getEnd(previous) > from) {
+            kill(previous, getStart(previous));
+        }
+        for (; index < _size && getStart(index) < to; ++index) {
+            if (!_dead[index]) {
+                kill(index, getStart(index));
+            }
+        }
+        compactIfSparse();
+    }
+
+    /**
+     * @return The index of the first live range starting at or after
+     *          offset, or -1
+     */
+    public int ceiling(int offset) {
+        return nextLive(lowerBound(offset));
+    }
+
+    /**
+     * @return The index of the last live range starting before offset,
+     *          or -1
+     */
+    public int lower(int offset) {
+        return previousLive(lowerBound(offset) - 1);
+    }
+
+    /**
+     * @return The index of the first live range ending after offset, or
+     *          starting at it, so that drawing [offset, end) can start
+     *          there. -1 if there is none.
+     */
+    public int firstVisible(int offset) {
+        int index = lowerBound(offset);
+        int previous = previousLive(index - 1);
+        if (previous >= 0 && getEnd(previous) > offset) {
+            return previous;
+        }
+        return nextLive(index);
+    }
+
+    /**
+     * @return The index of the next live range after index, or -1
+     */
+    public int next(int index) {
+        return nextLive(index + 1);
+    }
+
+    /**
+     * @return The index of the live range [start, end), or -1
+     */
+    public int indexOf(int start, int end) {
+        // an empty range may share its start with the next one
+        for (int index = ceiling(start); index >= 0 && getStart(index) == start; 
+             index = next(index)) {
+            if (getEnd(index) == end) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies the live ranges to starts and ends, both size() long
+     */
+    public void getRanges(int[] starts, int[] ends) {
+        int count = 0;
+        for (int i = 0; i < _size; ++i) {
+            if (!_dead[i]) {
+                int shift = prefix(i);
+                starts[count] = _starts[i] + shift;
+                ends[count] = _ends[i] + shift;
+                count++;
+            }
+        }
+    }
+
+    @Override
+    public void onInsert(int offset, char[] chars, int start, int count) {
+        int index = lowerBound(offset);
+        // only the range before can contain offset, as ranges do not overlap
+        if (index > 0 && !_dead[index - 1]
+            && getStart(index - 1) < offset && getEnd(index - 1) > offset) {
+            kill(index - 1, getStart(index - 1));
+        }
+        addShift(index, count);
+        compactIfSparse();
+    }
+
+    @Override
+    public void onDelete(int start, int end) {
+        int index = lowerBound(start);
+        if (index > 0 && !_dead[index - 1] && getEnd(index - 1) > start) {
+            kill(index - 1, getStart(index - 1));
+        }
+
+        // the ranges starting in [start, end) are gone, except an empty
+        // one at start which stays where it is
+        for (; index < _size; ++index) {
+            int rangeStart = getStart(index);
+            if (rangeStart >= end) {
+                break;
+            }
+            if (!_dead[index] && (rangeStart > start || getEnd(index) > start)) {
+                kill(index, start);
+            } else if (rangeStart > start) {
+                // dead, keep the starts sorted
+                collapse(index, start);
+            }
+        }
+        addShift(index, start - end);
+        compactIfSparse();
+    }
+
+    private void kill(int index, int at) {
+        _dead[index] = true;
+        _deadCount++;
+        collapse(index, at);
+    }
+
+    private void collapse(int index, int at) {
+        int shift = prefix(index);
+        _starts[index] = at - shift;
+        _ends[index] = at - shift;
+    }
+
+    /**
+     * @return The index of the first range starting at or after offset,
+     *          or _size
+     */
+    private int lowerBound(int offset) {
+        int low = 0;
+        int high = _size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStart(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int nextLive(int index) {
+        for (; index < _size; ++index) {
+            if (!_dead[index]) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int previousLive(int index) {
+        for (; index >= 0; --index) {
+            if (!_dead[index]) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    // Fenwick tree over the slots, adding at index shifts all slots >= index
+    private void addShift(int index, int delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (int i = index + 1; i < _tree.length; i += i & -i) {
+            _tree[i] += delta;
+        }
+    }
+
+    // the shift of slot index
+    private int prefix(int index) {
+        int sum = 0;
+        for (int i = Math.min(index + 1, _tree.length - 1); i > 0; i -= i & -i) {
+            sum += _tree[i];
+        }
+        return sum;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= _starts.length) {
+            return;
+        }
+        capacity = Math.max(capacity, _starts.length * 2);
+        int[] starts = new int[capacity];
+        int[] ends = new int[capacity];
+        int count = bake(starts, ends);
+        _starts = starts;
+        _ends = ends;
+        _dead = new boolean[capacity];
+        _tree = new int[capacity + 1];
+        _size = count;
+        _deadCount = 0;
+    }
+
+    /**
+     * Copies the live ranges with their shifts applied to starts and ends
+     *
+     * @return The number of live ranges
+     */
+    private int bake(int[] starts, int[] ends) {
+        int count = size();
+        getRanges(starts, ends);
+        return count;
+    }
+
+    private void compactIfSparse() {
+        if (_deadCount > 32 && _deadCount * 2 > _size) {
+            rebuild(null, null, 0);
+        }
+    }
+
+    /**
+     * Drops the dead ranges and folds the shifts into the ranges, merging
+     * in count more sorted ranges
+     */
+    private void rebuild(int[] starts, int[] ends, int count) {
+        int live = size();
+        int[] oldStarts = new int[live];
+        int[] oldEnds = new int[live];
+        bake(oldStarts, oldEnds);
+
+        int capacity = Math.max(64, live + count);
+        if (capacity > _starts.length || capacity * 4 < _starts.length) {
+            _starts = new int[capacity];
+            _ends = new int[capacity];
+            _dead = new boolean[capacity];
+            _tree = new int[capacity + 1];
+        } else {
+            Arrays.fill(_dead, false);
+            Arrays.fill(_tree, 0);
+        }
+
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < live || j < count) {
+            if (j == count || (i < live && oldStarts[i] <= starts[j])) {
+                _starts[size] = oldStarts[i];
+                _ends[size] = oldEnds[i];
+                i++;
+            } else {
+                _starts[size] = starts[j];
+                _ends[size] = ends[j];
+                j++;
+            }
+            size++;
+        }
+        _size = size;
+        _deadCount = 0;
+    }
+}
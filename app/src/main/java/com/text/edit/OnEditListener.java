@@ -0,0 +1,20 @@
+package com.text.edit;
+
+/**
+ * Receives every change of the text of a TextStorage, including the ones
+ * made by undo and redo, while the storage is locked for writing.
+ */
+public interface OnEditListener {
+
+    /**
+     * The count chars of chars, starting from start, were inserted at
+     * offset. The array belongs to the buffer and is only valid during
+     * the call.
+     */
+    void onInsert(int offset, char[] chars, int start, int count);
+
+    /**
+     * The chars [start, end) were deleted
+     */
+    void onDelete(int start, int end);
+}
@@ -0,0 +1,6 @@
+package com.text.edit;
+
+@FunctionalInterface
+public interface OnFindListener {
+    void onFind(int matchCount, boolean finished);
+}
@@ -0,0 +1,13 @@
+package com.text.edit;
+
+/**
+ * Receives the jobs a JobScheduler finished, on its worker thread
+ */
+public interface OnJobListener {
+
+    /**
+     * job ran through, its results must be applied on the thread that
+     * edits the text unless the text was edited since
+     */
+    void onJobDone(TextJob job);
+}
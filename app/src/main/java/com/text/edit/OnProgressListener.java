@@ -0,0 +1,6 @@
+package com.text.edit;
+
+@FunctionalInterface
+public interface OnProgressListener {
+    void onProgress(long done, long total);
+}
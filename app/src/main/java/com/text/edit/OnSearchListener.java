@@ -0,0 +1,22 @@
+package com.text.edit;
+
+/**
+ * Receives the results of a TextSearcher on its worker thread. Every
+ * call carries the id returned by TextSearcher.search(), so results of a
+ * search that was replaced can be told apart.
+ */
+public interface OnSearchListener {
+
+    /**
+     * count matches were found, the i-th one being [starts[i], ends[i]).
+     * The arrays are handed over to the listener. A batch is sorted, but
+     * the batches wrap around from the end of the text to its start.
+     */
+    void onMatches(int search, int[] starts, int[] ends, int count);
+
+    /**
+     * @param matchCount The matches found so far
+     * @param finished Whether the whole text was searched
+     */
+    void onProgress(int search, int matchCount, boolean finished);
+}
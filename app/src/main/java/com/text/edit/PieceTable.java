@@ -0,0 +1,983 @@
+package com.text.edit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PieceTable is a threadsafe TextStorage that never moves text around.
+ *
+ * The original text is kept untouched and all inserted text is appended
+ * to an add buffer. The document is a sequence of pieces, each one a span
+ * of either buffer. An edit only splits, inserts or removes a few pieces,
+ * so unlike GapBuffer its cost does not depend on the distance to the
+ * previous edit, which suits replace-all and multi-location edits.
+ *
+ * Undo/redo keeps the affected pieces instead of copies of the text,
+ * since both buffers are append-only. For the same reason a snapshot
+ * only copies the piece arrays and shares both buffers.
+ */
+public class PieceTable implements TextStorage {
+
+    private static final int ORIGINAL = 0;
+    private static final int ADDED = 1;
+    // chars handed to a TextFileWriter while holding the lock
+    private static final int WRITE_CHUNK = 256 * 1024;
+
+    private char[] _original;
+    private char[] _added;
+    private int _addedLength;
+
+    // pieces in document order
+    private int[] _source;
+    private int[] _start;
+    private int[] _length;
+    private int _pieceCount;
+
+    // document offset of each piece, valid for the first _validOffsets pieces
+    private int[] _offset;
+    private int _validOffsets;
+    // piece found by the last lookup, sequential reads tend to stay in it
+    private int _lastPiece;
+
+    private int _textLength;
+    // incremented by every change of the text
+    private long _version;
+    private LineIndex _lineIndex;
+    private UndoStack _undoStack;
+    private ArrayList<OnEditListener> _editListeners = new ArrayList<>();
+
+    public PieceTable() {
+        this("");
+    }
+
+    public PieceTable(String text) {
+        _original = text.toCharArray();
+        _added = new char[16];
+
+        _source = new int[16];
+        _start = new int[16];
+        _length = new int[16];
+        _offset = new int[16];
+
+        if (_original.length > 0) {
+            _source[0] = ORIGINAL;
+            _start[0] = 0;
+            _length[0] = _original.length;
+            _pieceCount = 1;
+        }
+        _textLength = _original.length;
+
+        _lineIndex = new LineIndex();
+        _lineIndex.insert(0, _original, 0, _original.length);
+        _undoStack = new UndoStack();
+    }
+
+    @Override
+    public synchronized String getLine(int lineNumber) {
+        int start = getLineOffset(lineNumber);
+        return substring(start, start + getLineLength(lineNumber));
+    }
+
+    @Override
+    public synchronized int getLineOffset(int lineNumber) {
+        if (lineNumber <= 0 || lineNumber > getLineCount()) {
+            throw new IllegalArgumentException("line index is invalid");
+        }
+        return _lineIndex.getLineStart(lineNumber - 1);
+    }
+
+    @Override
+    public synchronized int getLineLength(int lineNumber) {
+        int lineIndex = lineNumber - 1;
+        int lineLength = _lineIndex.getLineSize(lineIndex);
+        if (lineIndex < _lineIndex.getLineCount() - 1) {
+            // exclude the \n, and the \r of a \r\n line ending
+            --lineLength;
+            int start = _lineIndex.getLineStart(lineIndex);
+            if (lineLength > 0 && charAt(start + lineLength - 1) == '\r') {
+                --lineLength;
+            }
+        }
+        return lineLength;
+    }
+
+    @Override
+    public synchronized int findLineNumber(int charOffset) {
+        return _lineIndex.findLine(charOffset) + 1;
+    }
+
+    @Override
+    public synchronized int getLineCount() {
+        return _lineIndex.getLineCount();
+    }
+
+    @Override
+    public synchronized int length() {
+        return _textLength;
+    }
+
+    @Override
+    public synchronized char charAt(int index) {
+        int piece = findPiece(index);
+        int start = _start[piece] + index - _offset[piece];
+        return _source[piece] == ORIGINAL ? _original[start] : _added[start];
+    }
+
+    @Override
+    public synchronized CharSequence subSequence(int start, int end) {
+        return substring(start, end);
+    }
+
+    @Override
+    public synchronized String substring(int start, int end) {
+        end = Math.min(end, _textLength);
+        char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public synchronized long getChars(int start, int end, char[] dst, int dstBegin) {
+        if (start < 0 || end > _textLength || start > end) {
+            throw new IndexOutOfBoundsException("invalid range [" + start + ", " + end + ")");
+        }
+        if (start == end) {
+            return _version;
+        }
+
+        int piece = findPiece(start);
+        int skip = start - _offset[piece];
+        while (start < end) {
+            int count = Math.min(_length[piece] - skip, end - start);
+            char[] buffer = _source[piece] == ORIGINAL ? _original : _added;
+            System.arraycopy(buffer, _start[piece] + skip, dst, dstBegin, count);
+            dstBegin += count;
+            start += count;
+            skip = 0;
+            ++piece;
+        }
+        return _version;
+    }
+
+    /**
+     * Writes the text from a snapshot, so the edits made while it is
+     * written do not go into the file, and do not wait for it
+     */
+    @Override
+    public void writeTo(TextFileWriter writer) throws IOException {
+        Snapshot snapshot = (Snapshot) snapshot();
+        try {
+            snapshot.writeTo(writer);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    @Override
+    public synchronized long getVersion() {
+        return _version;
+    }
+
+    @Override
+    public synchronized TextSnapshot snapshot() {
+        ensureOffsets();
+        return new Snapshot(_original, _added, 
+                            Arrays.copyOf(_source, _pieceCount),
+                            Arrays.copyOf(_start, _pieceCount), 
+                            Arrays.copyOf(_offset, _pieceCount),
+                            _textLength, _version);
+    }
+
+    @Override
+    public synchronized void copyLines(LineIndex lines) {
+        lines.copyFrom(_lineIndex);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return substring(0, _textLength);
+    }
+
+    @Override
+    public synchronized PieceTable insert(int offset, String str, boolean capture) {
+        return insert(offset, str, capture, System.nanoTime());
+    }
+
+    public synchronized PieceTable insert(int offset, String str,
+                                          boolean capture, long timestamp) {
+        int length = str.length();
+        if (length == 0) {
+            return PieceTable.this;
+        }
+
+        int addStart = _addedLength;
+        if (_addedLength + length > _added.length) {
+            _added = Arrays.copyOf(_added, Math.max(_added.length * 2, _addedLength + length));
+        }
+        str.getChars(0, length, _added, _addedLength);
+        _addedLength += length;
+
+        // the line index first, the listeners may read it
+        _lineIndex.insert(offset, _added, addStart, length);
+        insertPiece(offset, ADDED, addStart, length);
+
+        if (capture) {
+            _undoStack.captureInsert(offset, addStart, length, timestamp);
+        }
+        return PieceTable.this;
+    }
+
+    @Override
+    public synchronized void addOnEditListener(OnEditListener listener) {
+        _editListeners.add(listener);
+    }
+
+    @Override
+    public synchronized void removeOnEditListener(OnEditListener listener) {
+        _editListeners.remove(listener);
+    }
+
+    @Override
+    public synchronized PieceTable append(String str) {
+        return insert(_textLength, str, false);
+    }
+
+    @Override
+    public synchronized PieceTable delete(int start, int end, boolean capture) {
+        return delete(start, end, capture, System.nanoTime());
+    }
+
+    public synchronized PieceTable delete(int start, int end,
+                                          boolean capture, long timestamp) {
+        if (start >= end) {
+            return PieceTable.this;
+        }
+
+        _lineIndex.delete(start, end);
+        int[] removed = removePieces(start, end, capture);
+
+        if (capture) {
+            _undoStack.captureDelete(start, end, removed, timestamp);
+        }
+        return PieceTable.this;
+    }
+
+    @Override
+    public synchronized PieceTable replace(int start, int end, String str, boolean capture) {
+        delete(start, end, capture);
+        insert(start, str, capture);
+        return PieceTable.this;
+    }
+
+    @Override
+    public synchronized PieceTable replaceAll(int[] starts, int[] ends, int count, 
+                                              String str, boolean capture) {
+        if (count == 0) {
+            return PieceTable.this;
+        }
+
+        // every range is replaced by the same span of the add buffer
+        int length = str.length();
+        int addStart = _addedLength;
+        if (_addedLength + length > _added.length) {
+            _added = Arrays.copyOf(_added, Math.max(_added.length * 2, _addedLength + length));
+        }
+        str.getChars(0, length, _added, _addedLength);
+        _addedLength += length;
+
+        int[] removed = new int[count];
+        int[][] inserted = new int[count][];
+        int[] piece = length > 0 ? new int[] {ADDED, addStart, length} : new int[0];
+        for (int i = 0; i < count; ++i) {
+            removed[i] = ends[i] - starts[i];
+            inserted[i] = piece;
+        }
+
+        int[][] removedPieces = splice(count, starts, removed, inserted, capture);
+        if (capture) {
+            _undoStack.captureReplaceAll(count, starts, removed, removedPieces, inserted);
+        }
+        return PieceTable.this;
+    }
+
+    /**
+     * Replaces count sorted, non-overlapping ranges in one pass over the
+     * pieces, and indexes the lines once. Range i starts at starts[i] and
+     * is removed[i] chars long, it is replaced by the pieces inserted[i]
+     * packed as (source, start, length) triples.
+     *
+     * @return The removed pieces of every range if keep is true,
+     *          otherwise null
+     */
+    private int[][] splice(int count, int[] starts, int[] removed, int[][] inserted, 
+                           boolean keep) {
+        int capacity = _pieceCount + 2 * count + 1;
+        for (int i = 0; i < count; ++i) {
+            capacity += inserted[i].length / 3;
+        }
+        capacity = Math.max(16, capacity);
+        int[] source = new int[capacity];
+        int[] start = new int[capacity];
+        int[] length = new int[capacity];
+        int[][] removedPieces = keep ? new int[count][] : null;
+        IntList pieces = keep ? new IntList() : null;
+
+        int n = 0;
+        int piece = 0;
+        int skip = 0;
+        int position = 0;
+        int textLength = _textLength;
+        for (int i = 0; i <= count; ++i) {
+            // the text up to the range is kept
+            int keepEnd = i < count ? starts[i] : _textLength;
+            while (position < keepEnd) {
+                int take = Math.min(_length[piece] - skip, keepEnd - position);
+                source[n] = _source[piece];
+                start[n] = _start[piece] + skip;
+                length[n] = take;
+                ++n;
+                position += take;
+                skip += take;
+                if (skip == _length[piece]) {
+                    ++piece;
+                    skip = 0;
+                }
+            }
+            if (i == count) {
+                break;
+            }
+
+            int removeEnd = starts[i] + removed[i];
+            if (keep) {
+                pieces.clear();
+            }
+            while (position < removeEnd) {
+                int take = Math.min(_length[piece] - skip, removeEnd - position);
+                if (keep) {
+                    pieces.add(_source[piece]);
+                    pieces.add(_start[piece] + skip);
+                    pieces.add(take);
+                }
+                position += take;
+                skip += take;
+                if (skip == _length[piece]) {
+                    ++piece;
+                    skip = 0;
+                }
+            }
+            if (keep) {
+                removedPieces[i] = pieces.toArray();
+            }
+
+            for (int j = 0; j < inserted[i].length; j += 3) {
+                source[n] = inserted[i][j];
+                start[n] = inserted[i][j + 1];
+                length[n] = inserted[i][j + 2];
+                ++n;
+            }
+            textLength += insertedLength(inserted[i]) - removed[i];
+        }
+
+        _source = source;
+        _start = start;
+        _length = length;
+        _offset = new int[capacity];
+        _pieceCount = n;
+        _validOffsets = 0;
+        _lastPiece = 0;
+        _textLength = textLength;
+
+        _lineIndex.clear();
+        int offset = 0;
+        for (int i = 0; i < n; ++i) {
+            char[] buffer = _source[i] == ORIGINAL ? _original : _added;
+            _lineIndex.insert(offset, buffer, _start[i], _length[i]);
+            offset += _length[i];
+        }
+        _version++;
+
+        for (OnEditListener listener : _editListeners) {
+            // from the last range back, so every offset is still valid
+            for (int i = count - 1; i >= 0; --i) {
+                listener.onDelete(starts[i], starts[i] + removed[i]);
+                offset = starts[i];
+                for (int j = 0; j < inserted[i].length; j += 3) {
+                    char[] buffer = inserted[i][j] == ORIGINAL ? _original : _added;
+                    listener.onInsert(offset, buffer, inserted[i][j + 1], inserted[i][j + 2]);
+                    offset += inserted[i][j + 2];
+                }
+            }
+        }
+        return removedPieces;
+    }
+
+    private static int insertedLength(int[] pieces) {
+        int length = 0;
+        for (int i = 2; i < pieces.length; i += 3) {
+            length += pieces[i];
+        }
+        return length;
+    }
+
+    /**
+     * Inserts the span [start, start + length) of source at offset
+     */
+    private void insertPiece(int offset, int source, int start, int length) {
+        int index = splitAt(offset);
+
+        // typing at the end of the previous insertion extends its piece
+        if (index > 0 && _source[index - 1] == source
+            && _start[index - 1] + _length[index - 1] == start) {
+            _length[index - 1] += length;
+            _validOffsets = Math.min(_validOffsets, index);
+        } else {
+            makeRoom(index, 1);
+            _source[index] = source;
+            _start[index] = start;
+            _length[index] = length;
+        }
+        _textLength += length;
+        _version++;
+        inserted(offset, source, start, length);
+    }
+
+    /**
+     * Inserts the pieces packed as (source, start, length) triples at offset
+     */
+    private void insertPieces(int offset, int[] pieces) {
+        int count = pieces.length / 3;
+        int textLength = _textLength;
+        int index = splitAt(offset);
+        makeRoom(index, count);
+        for (int i = 0; i < count; ++i) {
+            _source[index + i] = pieces[i * 3];
+            _start[index + i] = pieces[i * 3 + 1];
+            _length[index + i] = pieces[i * 3 + 2];
+            _textLength += pieces[i * 3 + 2];
+
+            char[] buffer = pieces[i * 3] == ORIGINAL ? _original : _added;
+            _lineIndex.insert(offset, buffer, pieces[i * 3 + 1], pieces[i * 3 + 2]);
+            offset += pieces[i * 3 + 2];
+        }
+        _version++;
+
+        offset -= _textLength - textLength;
+        for (int i = 0; i < count; ++i) {
+            inserted(offset, pieces[i * 3], pieces[i * 3 + 1], pieces[i * 3 + 2]);
+            offset += pieces[i * 3 + 2];
+        }
+    }
+
+    // tells the edit listeners about the span of source inserted at offset
+    private void inserted(int offset, int source, int start, int length) {
+        char[] buffer = source == ORIGINAL ? _original : _added;
+        for (int i = 0; i < _editListeners.size(); ++i) {
+            _editListeners.get(i).onInsert(offset, buffer, start, length);
+        }
+    }
+
+    /**
+     * Removes the text [start, end)
+     *
+     * @return The removed pieces packed as (source, start, length) triples
+     *          if keep is true, otherwise null
+     */
+    private int[] removePieces(int start, int end, boolean keep) {
+        int first = splitAt(start);
+        int last = splitAt(end);
+        int count = last - first;
+
+        int[] removed = null;
+        if (keep) {
+            removed = new int[count * 3];
+            for (int i = 0; i < count; ++i) {
+                removed[i * 3] = _source[first + i];
+                removed[i * 3 + 1] = _start[first + i];
+                removed[i * 3 + 2] = _length[first + i];
+            }
+        }
+
+        int moved = _pieceCount - last;
+        System.arraycopy(_source, last, _source, first, moved);
+        System.arraycopy(_start, last, _start, first, moved);
+        System.arraycopy(_length, last, _length, first, moved);
+        _pieceCount -= count;
+        _textLength -= end - start;
+        _validOffsets = Math.min(_validOffsets, first);
+        _version++;
+        for (int i = 0; i < _editListeners.size(); ++i) {
+            _editListeners.get(i).onDelete(start, end);
+        }
+        return removed;
+    }
+
+    /**
+     * Makes offset fall on a piece boundary.
+     *
+     * @return The index of the piece that starts at offset, or
+     *          _pieceCount if offset is the end of the text
+     */
+    private int splitAt(int offset) {
+        if (offset >= _textLength) {
+            return _pieceCount;
+        }
+
+        int piece = findPiece(offset);
+        int skip = offset - _offset[piece];
+        if (skip == 0) {
+            return piece;
+        }
+
+        makeRoom(piece + 1, 1);
+        _source[piece + 1] = _source[piece];
+        _start[piece + 1] = _start[piece] + skip;
+        _length[piece + 1] = _length[piece] - skip;
+        _length[piece] = skip;
+        return piece + 1;
+    }
+
+    private void makeRoom(int index, int count) {
+        if (_pieceCount + count > _source.length) {
+            int capacity = Math.max(_source.length * 2, _pieceCount + count);
+            _source = Arrays.copyOf(_source, capacity);
+            _start = Arrays.copyOf(_start, capacity);
+            _length = Arrays.copyOf(_length, capacity);
+            _offset = Arrays.copyOf(_offset, capacity);
+        }
+
+        int moved = _pieceCount - index;
+        System.arraycopy(_source, index, _source, index + count, moved);
+        System.arraycopy(_start, index, _start, index + count, moved);
+        System.arraycopy(_length, index, _length, index + count, moved);
+        _pieceCount += count;
+        _validOffsets = Math.min(_validOffsets, index);
+    }
+
+    /**
+     * Finds the piece that contains offset. No error checking is done.
+     */
+    private int findPiece(int offset) {
+        ensureOffsets();
+
+        int piece = _lastPiece;
+        if (piece < _pieceCount && offset >= _offset[piece]
+            && offset < _offset[piece] + _length[piece]) {
+            return piece;
+        }
+
+        int low = 0;
+        int high = _pieceCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (_offset[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        _lastPiece = low;
+        return low;
+    }
+
+    private void ensureOffsets() {
+        if (_validOffsets == _pieceCount) {
+            return;
+        }
+
+        int i = _validOffsets;
+        int offset = i > 0 ? _offset[i - 1] + _length[i - 1] : 0;
+        for (; i < _pieceCount; ++i) {
+            _offset[i] = offset;
+            offset += _length[i];
+        }
+        _validOffsets = _pieceCount;
+    }
+
+    @Override
+    public synchronized boolean canUndo() {
+        return _undoStack.canUndo();
+    }
+
+    @Override
+    public synchronized boolean canRedo() {
+        return _undoStack.canRedo();
+    }
+
+    @Override
+    public synchronized int undo() {
+        return _undoStack.undo();
+    }
+
+    @Override
+    public synchronized int redo() {
+        return _undoStack.redo();
+    }
+
+    @Override
+    public synchronized void beginBatchEdit() {
+        _undoStack.beginBatchEdit();
+    }
+
+    @Override
+    public synchronized void endBatchEdit() {
+        _undoStack.endBatchEdit();
+    }
+
+    @Override
+    public synchronized boolean isBatchEdit() {
+        return _undoStack.isBatchEdit();
+    }
+
+    /**
+     * A copy of the piece arrays over the shared, append-only buffers
+     */
+    private static class Snapshot implements TextSnapshot {
+        private final char[] _original;
+        private final char[] _added;
+        private final int[] _source;
+        private final int[] _start;
+        private final int[] _offset;
+        private final int _textLength;
+        private final long _version;
+        // piece found by the last lookup
+        private int _lastPiece;
+
+        Snapshot(char[] original, char[] added, int[] source, int[] start,
+                 int[] offset, int textLength, long version) {
+            _original = original;
+            _added = added;
+            _source = source;
+            _start = start;
+            _offset = offset;
+            _textLength = textLength;
+            _version = version;
+        }
+
+        @Override
+        public long getVersion() {
+            return _version;
+        }
+
+        @Override
+        public int length() {
+            return _textLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= _textLength) {
+                throw new IndexOutOfBoundsException("index " + index + " out of bounds");
+            }
+            int piece = findPiece(index);
+            int start = _start[piece] + index - _offset[piece];
+            return _source[piece] == ORIGINAL ? _original[start] : _added[start];
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dst, int dstBegin) {
+            if (start < 0 || end > _textLength || start > end) {
+                throw new IndexOutOfBoundsException("invalid range [" + start + ", " + end + ")");
+            }
+            if (start == end) {
+                return;
+            }
+
+            int piece = findPiece(start);
+            int skip = start - _offset[piece];
+            while (start < end) {
+                int count = Math.min(pieceLength(piece) - skip, end - start);
+                char[] buffer = _source[piece] == ORIGINAL ? _original : _added;
+                System.arraycopy(buffer, _start[piece] + skip, dst, dstBegin, count);
+                dstBegin += count;
+                start += count;
+                skip = 0;
+                ++piece;
+            }
+        }
+
+        private int pieceLength(int piece) {
+            int end = piece + 1 < _offset.length ? _offset[piece + 1] : _textLength;
+            return end - _offset[piece];
+        }
+
+        private int findPiece(int offset) {
+            int piece = _lastPiece;
+            if (offset >= _offset[piece] && offset - _offset[piece] < pieceLength(piece)) {
+                return piece;
+            }
+
+            int low = 0;
+            int high = _offset.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (_offset[mid] <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            _lastPiece = low;
+            return low;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            char[] chars = new char[end - start];
+            getChars(start, end, chars, 0);
+            return new String(chars);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, _textLength).toString();
+        }
+
+        /**
+         * Writes the pieces straight from both buffers, in chunks of at
+         * most WRITE_CHUNK chars
+         */
+        void writeTo(TextFileWriter writer) throws IOException {
+            for (int piece = 0; piece < _offset.length; ++piece) {
+                char[] buffer = _source[piece] == ORIGINAL ? _original : _added;
+                int length = pieceLength(piece);
+                for (int skip = 0; skip < length; skip += WRITE_CHUNK) {
+                    writer.write(buffer, _start[piece] + skip, Math.min(WRITE_CHUNK, length - skip));
+                }
+            }
+        }
+
+        @Override
+        public void release() {
+            // nothing is shared that could be overwritten
+        }
+    }
+
+    class UndoStack {
+        /* 1s in nanoseconds */
+        private final long MERGE_TIME = 1000000000;
+
+        private boolean _isBatchEdit;
+        /* for grouping batch operations */
+        private int _groupId;
+        /* where new entries should go */
+        private int _top;
+        /* timestamp for the previous edit operation */
+        private long _lastEditTime;
+
+        private ArrayList<Edit> _stack = new ArrayList<>();
+
+        public int undo() {
+            if (!canUndo()) {
+                return -1;
+            }
+
+            int group = _stack.get(_top - 1)._group;
+            Edit edit;
+            do {
+                edit = _stack.get(--_top);
+                edit.undo();
+            } while (canUndo() && _stack.get(_top - 1)._group == group);
+            return edit.undoneAt();
+        }
+
+        public int redo() {
+            if (!canRedo()) {
+                return -1;
+            }
+
+            int group = _stack.get(_top)._group;
+            Edit edit;
+            do {
+                edit = _stack.get(_top++);
+                edit.redo();
+            } while (canRedo() && _stack.get(_top)._group == group);
+            return edit.redoneAt();
+        }
+
+        public void captureInsert(int start, int addStart, int length, long time) {
+            Edit top = canMerge(time) ? _stack.get(_top - 1) : null;
+            if (top != null && top._insert
+                && top._start + top._length == start
+                && top.lastPieceEnd() == addStart) {
+                // continuous typing, extend the last added piece
+                top._pieces[top._pieces.length - 1] += length;
+                top._length += length;
+            } else {
+                push(new Edit(true, start, length, new int[] {ADDED, addStart, length}));
+            }
+            _lastEditTime = time;
+        }
+
+        public void captureDelete(int start, int end, int[] removed, long time) {
+            Edit top = canMerge(time) ? _stack.get(_top - 1) : null;
+            if (top != null && !top._insert && end == top._start) {
+                // continuous backspace, the removed pieces precede the old ones
+                int[] pieces = new int[removed.length + top._pieces.length];
+                System.arraycopy(removed, 0, pieces, 0, removed.length);
+                System.arraycopy(top._pieces, 0, pieces, removed.length, top._pieces.length);
+                top._pieces = pieces;
+                top._start = start;
+                top._length += end - start;
+            } else {
+                push(new Edit(false, start, end - start, removed));
+            }
+            _lastEditTime = time;
+        }
+
+        public void captureReplaceAll(int count, int[] starts, int[] removed,
+                                      int[][] removedPieces, int[][] inserted) {
+            push(new ReplaceAllEdit(count, starts, removed, removedPieces, inserted));
+        }
+
+        private boolean canMerge(long time) {
+            return canUndo() && !canRedo() && !_isBatchEdit
+                && time - _lastEditTime < MERGE_TIME
+                && !(_stack.get(_top - 1) instanceof ReplaceAllEdit);
+        }
+
+        private void push(Edit edit) {
+            while (_stack.size() > _top) {
+                _stack.remove(_stack.size() - 1);
+            }
+            _stack.add(edit);
+            _top++;
+
+            if (!_isBatchEdit) {
+                _groupId++;
+            }
+        }
+
+        public final boolean canUndo() {
+            return _top > 0;
+        }
+
+        public final boolean canRedo() {
+            return _top < _stack.size();
+        }
+
+        public boolean isBatchEdit() {
+            return _isBatchEdit;
+        }
+
+        public void beginBatchEdit() {
+            _isBatchEdit = true;
+        }
+
+        public void endBatchEdit() {
+            _isBatchEdit = false;
+            _groupId++;
+        }
+
+        private class Edit {
+            /* Whether the edit inserted or deleted the pieces */
+            public boolean _insert;
+            /* Start position of the edit */
+            public int _start;
+            /* Length of the affected segment */
+            public int _length;
+            /* Affected pieces packed as (source, start, length) */
+            public int[] _pieces;
+            /* Group ID. Edits of the same group are undo/redo as a unit */
+            public int _group;
+
+            public Edit(boolean insert, int start, int length, int[] pieces) {
+                _insert = insert;
+                _start = start;
+                _length = length;
+                _pieces = pieces;
+                _group = _groupId;
+            }
+
+            public int lastPieceEnd() {
+                int last = _pieces.length - 3;
+                return _pieces[last] == ADDED ? _pieces[last + 1] + _pieces[last + 2] : -1;
+            }
+
+            /* The offset of the cursor after undo() */
+            public int undoneAt() {
+                return _insert ? _start : _start + _length;
+            }
+
+            /* The offset of the cursor after redo() */
+            public int redoneAt() {
+                return _insert ? _start + _length : _start;
+            }
+
+            public void undo() {
+                if (_insert) {
+                    remove();
+                } else {
+                    restore();
+                }
+            }
+
+            public void redo() {
+                if (_insert) {
+                    restore();
+                } else {
+                    remove();
+                }
+            }
+
+            private void remove() {
+                _lineIndex.delete(_start, _start + _length);
+                removePieces(_start, _start + _length, false);
+            }
+
+            private void restore() {
+                insertPieces(_start, _pieces);
+            }
+        }
+
+        private class ReplaceAllEdit extends Edit {
+            private final int _count;
+            /* The ranges before and after the replacement */
+            private final int[] _oldStarts;
+            private final int[] _oldLengths;
+            private final int[] _newStarts;
+            private final int[] _newLengths;
+            /* The pieces of the ranges before and after the replacement */
+            private final int[][] _oldPieces;
+            private final int[][] _newPieces;
+
+            public ReplaceAllEdit(int count, int[] starts, int[] removed,
+                                  int[][] removedPieces, int[][] inserted) {
+                super(false, starts[count - 1], removed[count - 1], null);
+                _count = count;
+                _oldStarts = Arrays.copyOf(starts, count);
+                _oldLengths = removed;
+                _oldPieces = removedPieces;
+                _newPieces = inserted;
+                _newStarts = new int[count];
+                _newLengths = new int[count];
+                int shift = 0;
+                for (int i = 0; i < count; ++i) {
+                    _newStarts[i] = starts[i] + shift;
+                    _newLengths[i] = insertedLength(inserted[i]);
+                    shift += _newLengths[i] - removed[i];
+                }
+            }
+
+            @Override
+            public int undoneAt() {
+                return _oldStarts[_count - 1] + _oldLengths[_count - 1];
+            }
+
+            @Override
+            public int redoneAt() {
+                return _newStarts[_count - 1] + _newLengths[_count - 1];
+            }
+
+            @Override
+            public void undo() {
+                splice(_count, _newStarts, _newLengths, _oldPieces, false);
+            }
+
+            @Override
+            public void redo() {
+                splice(_count, _oldStarts, _oldLengths, _newPieces, false);
+            }
+        }
+    }
+}
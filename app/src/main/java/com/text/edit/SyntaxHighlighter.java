@@ -0,0 +1,291 @@
+package com.text.edit;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the token spans of every line of a text, found by a Tokenizer,
+ * in step with the edits of the text.
+ *
+ * For each line the state of the tokenizer at its end and its spans are
+ * cached, the spans packed in an int[] of (offset in line, token type)
+ * pairs. An edit only marks the lines it touched as damaged. Re-lexing
+ * starts at the first damaged line and stops at the first line after the
+ * damage that ends in the same state as before, as the lines after it
+ * start in the same state they were lexed in. Typing so costs a line or
+ * two, opening a block comment costs the lines up to where it closes.
+ *
+ * The lexing itself is done by a Job, which createJob() plans, a
+ * JobScheduler runs on a snapshot off the UI thread and apply()
+ * stores, as long as the text was not edited in between. A damaged line
+ * keeps its old spans until then, a line never lexed has none.
+ *
+ * The edits are mapped to lines through a LineIndex of its own, as the
+ * storage is locked while it calls the OnEditListener. It starts as a
+ * copy of the storage's, the text is not read to find the lines. Line indices are
+ * 0-based like the ones of LineIndex. Not threadsafe, the view uses it
+ * on the UI thread.
+ */
+public class SyntaxHighlighter implements OnEditListener {
+
+    private static final int[] NO_SPANS = new int[0];
+    // lines lexed by a job below the visible ones
+    private static final int FILL_LINES = 2000;
+
+    private final Tokenizer _tokenizer;
+    private final LineIndex _lines = new LineIndex();
+
+    // by line, valid below _lexedLines
+    private int[] _states = new int[64];
+    private int[][] _spans = new int[64][];
+    private int _lexedLines;
+
+    // the lines [_damageStart, _damageEnd) were edited since they were lexed
+    private int _damageStart = Integer.MAX_VALUE;
+    private int _damageEnd;
+
+    public SyntaxHighlighter(Tokenizer tokenizer) {
+        _tokenizer = tokenizer;
+    }
+
+    /**
+     * Starts over with the lines of storage, copied from its line index.
+     * The edits that follow must be passed to the OnEditListener methods.
+     */
+    public void reset(TextStorage storage) {
+        storage.copyLines(_lines);
+
+        int lineCount = _lines.getLineCount();
+        _states = new int[Math.max(64, lineCount)];
+        _spans = new int[_states.length][];
+        _lexedLines = 0;
+        clearDamage();
+    }
+
+    public int getLineCount() {
+        return _lines.getLineCount();
+    }
+
+    /**
+     * Plans the next lexing: the damaged lines and the lines never lexed
+     * up to lastLine, the visible ones, then FILL_LINES of the rest.
+     *
+     * @return The job, or null if all lines are lexed
+     */
+    public Job createJob(int lastLine) {
+        int lineCount = getLineCount();
+        int first = Math.min(_damageStart, _lexedLines);
+        if (first >= lineCount) {
+            return null;
+        }
+
+        int count = first <= lastLine
+            ? Math.min(lastLine, lineCount - 1) - first + 1
+            : Math.min(FILL_LINES, lineCount - first);
+        // the old states tell the job where it can stop
+        int[] oldStates = Arrays.copyOfRange(_states, first,
+                                             Math.max(first, Math.min(_lexedLines, first + count)));
+        int state = first > 0 ? _states[first - 1] : Tokenizer.INITIAL_STATE;
+        return new Job(_tokenizer, first, _lines.getLineStart(first), state, count,
+                       oldStates, _damageEnd);
+    }
+
+    /**
+     * Stores the results of job, which must have been created by the last
+     * call of createJob(), with no edits since
+     */
+    public void apply(Job job) {
+        for (int i = 0; i < job._lexed; ++i) {
+            int line = job._firstLine + i;
+            boolean relexed = line < _lexedLines;
+            int oldState = _states[line];
+            _states[line] = job._states[i];
+            _spans[line] = job._spans[i];
+            if (!relexed) {
+                _lexedLines = line + 1;
+            } else if (line + 1 >= _damageEnd && job._states[i] == oldState) {
+                clearDamage();
+                return;
+            }
+        }
+
+        // the next line starts in a new state, it is damaged now
+        int next = job._firstLine + job._lexed;
+        if (next < _lexedLines) {
+            _damageStart = next;
+            _damageEnd = Math.max(_damageEnd, next + 1);
+        } else {
+            clearDamage();
+        }
+    }
+
+    /**
+     * @return The (offset in line, token type) pairs of the line, or null
+     *          if it was never lexed
+     */
+    public int[] getSpans(int line) {
+        return line < _lexedLines ? _spans[line] : null;
+    }
+
+    private void clearDamage() {
+        _damageStart = Integer.MAX_VALUE;
+        _damageEnd = 0;
+    }
+
+    @Override
+    public void onInsert(int offset, char[] chars, int start, int count) {
+        int line = _lines.findLine(offset);
+        int newlines = 0;
+        for (int i = start; i < start + count; ++i) {
+            if (chars[i] == '\n') {
+                ++newlines;
+            }
+        }
+        _lines.insert(offset, chars, start, count);
+
+        // the state at the end of the edited line is now the one at the
+        // end of its last part, so the new slots go before it
+        if (newlines > 0) {
+            insertSlots(line, newlines);
+            if (_lexedLines > line) {
+                _lexedLines += newlines;
+            }
+            if (_damageStart > line && _damageStart != Integer.MAX_VALUE) {
+                _damageStart += newlines;
+            }
+            if (_damageEnd > line) {
+                _damageEnd += newlines;
+            }
+        }
+        damage(line, line + newlines + 1);
+    }
+
+    @Override
+    public void onDelete(int start, int end) {
+        int first = _lines.findLine(start);
+        int last = _lines.findLine(end);
+        _lines.delete(start, end);
+
+        // the joined line keeps the state at the end of the last one
+        int removed = last - first;
+        if (removed > 0) {
+            removeSlots(first, removed);
+            if (_lexedLines > last) {
+                _lexedLines -= removed;
+            } else if (_lexedLines > first) {
+                _lexedLines = first;
+            }
+            if (_damageStart != Integer.MAX_VALUE) {
+                _damageStart = deletedLine(_damageStart, first, last, first);
+                _damageEnd = deletedLine(_damageEnd, first, last, first + 1);
+            }
+        }
+        damage(first, first + 1);
+    }
+
+    // where line went after the lines (first, last] were removed
+    private static int deletedLine(int line, int first, int last, int joined) {
+        if (line > last) {
+            return line - (last - first);
+        }
+        return line > first ? joined : line;
+    }
+
+    private void damage(int start, int end) {
+        _damageStart = Math.min(_damageStart, start);
+        _damageEnd = Math.max(_damageEnd, end);
+    }
+
+    private void insertSlots(int line, int count) {
+        int used = getLineCount() - count;
+        if (used + count > _states.length) {
+            int capacity = Math.max(used + count, _states.length * 2);
+            _states = Arrays.copyOf(_states, capacity);
+            _spans = Arrays.copyOf(_spans, capacity);
+        }
+        System.arraycopy(_states, line, _states, line + count, used - line);
+        System.arraycopy(_spans, line, _spans, line + count, used - line);
+        Arrays.fill(_spans, line, line + count, null);
+    }
+
+    private void removeSlots(int line, int count) {
+        int used = getLineCount() + count;
+        System.arraycopy(_states, line + count, _states, line, used - line - count);
+        System.arraycopy(_spans, line + count, _spans, line, used - line - count);
+        Arrays.fill(_spans, used - count, used, null);
+    }
+
+    /**
+     * Lexes count lines from the first one, on any thread, stopping once
+     * a line past the damage ends in its old state
+     */
+    public static class Job implements TextJob {
+        private final Tokenizer _tokenizer;
+        private final int _firstLine;
+        private final int _firstOffset;
+        private final int _startState;
+        private final int[] _oldStates;
+        private final int _damageEnd;
+        private volatile boolean _cancelled;
+
+        private final int[] _states;
+        private final int[][] _spans;
+        private int _lexed;
+
+        Job(Tokenizer tokenizer, int firstLine, int firstOffset, int startState, int count,
+            int[] oldStates, int damageEnd) {
+            _tokenizer = tokenizer;
+            _firstLine = firstLine;
+            _firstOffset = firstOffset;
+            _startState = startState;
+            _oldStates = oldStates;
+            _damageEnd = damageEnd;
+            _states = new int[count];
+            _spans = new int[count][];
+        }
+
+        public int getFirstLine() {
+            return _firstLine;
+        }
+
+        /**
+         * @return The lines lexed from the first one, once it ran
+         */
+        public int getLexedLines() {
+            return _lexed;
+        }
+
+        @Override
+        public void cancel() {
+            _cancelled = true;
+        }
+
+        /**
+         * Lexes the lines of text, the snapshot the job was created for
+         */
+        @Override
+        public boolean run(TextStorage storage, TextSnapshot text) {
+            IntList tokens = new IntList(64);
+            LineReader reader = new LineReader(text, _firstOffset);
+            int state = _startState;
+
+            for (int i = 0; i < _states.length && reader.next(); ++i) {
+                if (_cancelled || ((i & 0xff) == 0 && storage.getVersion() != text.getVersion())) {
+                    return false;
+                }
+
+                tokens.clear();
+                state = _tokenizer.tokenize(reader.getChars(), reader.getStart(), reader.getEnd(),
+                                            state, tokens);
+                _states[i] = state;
+                _spans[i] = tokens.isEmpty() ? NO_SPANS : tokens.toArray();
+                _lexed = i + 1;
+
+                if (i < _oldStates.length && _firstLine + i + 1 >= _damageEnd
+                    && state == _oldStates[i]) {
+                    break;
+                }
+            }
+            return !_cancelled;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.text.edit;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only store of text for the undo history.
+ *
+ * Text is copied into large shared char[] chunks instead of a String per
+ * record, so recording many small edits does not fragment the heap. A
+ * record never spans two chunks and is referred to by a handle holding
+ * its chunk id in the high 32 bits and its offset in the low 32 bits.
+ *
+ * Each chunk counts the records that still use it and is dropped when the
+ * last one is released. With compression on, chunks that are no longer
+ * written to are deflated and inflated again when one of their records
+ * is read, which only undo and redo do.
+ *
+ * Not threadsafe, GapBuffer only uses it under its write lock.
+ */
+public class TextArena {
+
+    // chars per chunk, longer records get a chunk of their own
+    private static final int CHUNK_SIZE = 32 * 1024;
+    // the newest chunks are never compressed
+    private static final int UNCOMPRESSED_CHUNKS = 2;
+
+    // chunks by id - _firstChunk, null once released
+    private char[][] _chars = new char[8][];
+    private byte[][] _compressed = new byte[8][];
+    private int[] _used = new int[8];
+    private int[] _refs = new int[8];
+    private int _firstChunk;
+    private int _chunkCount;
+
+    private boolean _compress;
+    private long _memoryBytes;
+
+    // the last inflated chunk
+    private int _inflatedChunk = -1;
+    private char[] _inflated;
+
+    /**
+     * Reserves room for a record of length chars. The caller must fill it
+     * through array() and offset() right away.
+     *
+     * @return The handle of the record
+     */
+    public long allocate(int length) {
+        int chunk = _firstChunk + _chunkCount - 1;
+        // the last chunk is never compressed
+        if (_chunkCount == 0 
+            || _used[_chunkCount - 1] + length > _chars[_chunkCount - 1].length) {
+            chunk = newChunk(Math.max(length, CHUNK_SIZE));
+        }
+
+        int index = chunk - _firstChunk;
+        int offset = _used[index];
+        _used[index] += length;
+        _refs[index]++;
+        return ((long) chunk << 32) | offset;
+    }
+
+    /**
+     * @return The array to write the record of handle to
+     */
+    public char[] array(long handle) {
+        return _chars[chunkOf(handle) - _firstChunk];
+    }
+
+    public static int offset(long handle) {
+        return (int) handle;
+    }
+
+    private static int chunkOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    /**
+     * Copies the record of handle, length chars long, to dst
+     */
+    public void getChars(long handle, int length, char[] dst, int dstBegin) {
+        int index = chunkOf(handle) - _firstChunk;
+        char[] chars = _chars[index];
+        if (chars == null) {
+            chars = inflate(chunkOf(handle));
+        }
+        System.arraycopy(chars, offset(handle), dst, dstBegin, length);
+    }
+
+    /**
+     * Tells that the record of handle is no longer used
+     */
+    public void release(long handle) {
+        int index = chunkOf(handle) - _firstChunk;
+        // the chunk still being filled is freed when the next one starts
+        if (--_refs[index] == 0 && index < _chunkCount - 1) {
+            freeChunk(index);
+        }
+    }
+
+    private void freeChunk(int index) {
+        _memoryBytes -= chunkBytes(index);
+        _chars[index] = null;
+        _compressed[index] = null;
+        if (_inflatedChunk == _firstChunk + index) {
+            _inflatedChunk = -1;
+            _inflated = null;
+        }
+
+        // drop the freed chunks at the front
+        int dropped = 0;
+        while (dropped < _chunkCount && isFree(dropped)) {
+            ++dropped;
+        }
+        if (dropped > 0) {
+            shift(dropped);
+        }
+    }
+
+    private boolean isFree(int index) {
+        return _chars[index] == null && _compressed[index] == null;
+    }
+
+    /**
+     * Deflates the chunks that are no longer written to, trading CPU time
+     * on undo and redo for memory
+     */
+    public void setCompression(boolean compress) {
+        _compress = compress;
+        if (compress) {
+            for (int i = 0; i < _chunkCount - UNCOMPRESSED_CHUNKS; ++i) {
+                compress(i);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(_chars, null);
+        Arrays.fill(_compressed, null);
+        _firstChunk += _chunkCount;
+        _chunkCount = 0;
+        _memoryBytes = 0;
+        _inflatedChunk = -1;
+        _inflated = null;
+    }
+
+    /**
+     * @return The bytes held by the chunks
+     */
+    public long getMemoryBytes() {
+        return _memoryBytes;
+    }
+
+    private int newChunk(int size) {
+        if (_chunkCount > 0 && _refs[_chunkCount - 1] == 0) {
+            // nothing is left in the chunk that was being filled
+            freeChunk(_chunkCount - 1);
+        }
+
+        if (_chunkCount == _chars.length) {
+            int capacity = _chunkCount * 2;
+            _chars = Arrays.copyOf(_chars, capacity);
+            _compressed = Arrays.copyOf(_compressed, capacity);
+            _used = Arrays.copyOf(_used, capacity);
+            _refs = Arrays.copyOf(_refs, capacity);
+        }
+
+        int index = _chunkCount++;
+        _chars[index] = new char[size];
+        _compressed[index] = null;
+        _used[index] = 0;
+        _refs[index] = 0;
+        _memoryBytes += size * 2L;
+
+        if (_compress && index >= UNCOMPRESSED_CHUNKS) {
+            compress(index - UNCOMPRESSED_CHUNKS);
+        }
+        return _firstChunk + index;
+    }
+
+    private void shift(int count) {
+        int remain = _chunkCount - count;
+        System.arraycopy(_chars, count, _chars, 0, remain);
+        System.arraycopy(_compressed, count, _compressed, 0, remain);
+        System.arraycopy(_used, count, _used, 0, remain);
+        System.arraycopy(_refs, count, _refs, 0, remain);
+        Arrays.fill(_chars, remain, _chunkCount, null);
+        Arrays.fill(_compressed, remain, _chunkCount, null);
+        _firstChunk += count;
+        _chunkCount = remain;
+    }
+
+    private long chunkBytes(int index) {
+        if (_chars[index] != null) {
+            return _chars[index].length * 2L;
+        }
+        return _compressed[index] != null ? _compressed[index].length : 0;
+    }
+
+    private void compress(int index) {
+        char[] chars = _chars[index];
+        if (chars == null || _refs[index] == 0) {
+            return;
+        }
+
+        int used = _used[index];
+        byte[] bytes = new byte[used * 2];
+        for (int i = 0; i < used; ++i) {
+            bytes[i * 2] = (byte) (chars[i] >> 8);
+            bytes[i * 2 + 1] = (byte) chars[i];
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] out = new byte[Math.max(64, bytes.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        deflater.end();
+
+        if (length >= bytes.length) {
+            // not worth it
+            return;
+        }
+        _compressed[index] = Arrays.copyOf(out, length);
+        _chars[index] = null;
+        _memoryBytes += length - chars.length * 2L;
+    }
+
+    private char[] inflate(int chunk) {
+        if (_inflatedChunk == chunk) {
+            return _inflated;
+        }
+
+        int index = chunk - _firstChunk;
+        int used = _used[index];
+        byte[] bytes = new byte[used * 2];
+        Inflater inflater = new Inflater();
+        inflater.setInput(_compressed[index]);
+        try {
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupted undo data", e);
+        } finally {
+            inflater.end();
+        }
+
+        char[] chars = new char[used];
+        for (int i = 0; i < used; ++i) {
+            chars[i] = (char) (((bytes[i * 2] & 0xff) << 8) | (bytes[i * 2 + 1] & 0xff));
+        }
+        _inflatedChunk = chunk;
+        _inflated = chars;
+        return chars;
+    }
+}
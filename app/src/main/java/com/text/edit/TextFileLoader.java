@@ -0,0 +1,122 @@
+package com.text.edit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a file into a GapBuffer.
+ *
+ * The bytes are read in large blocks and decoded straight into a reused
+ * char chunk, which is appended to the buffer with one block copy. The
+ * buffer is pre-sized from the file length and builds its line index
+ * while the chunk is appended, so the text is scanned once.
+ *
+ * Line endings are kept as they are, so saving the buffer again gives
+ * the same bytes. The first line ending found is reported by
+ * getLineSeparator() for new lines typed by the user.
+ */
+public class TextFileLoader {
+
+    // bytes read at a time
+    private static final int BYTE_BUFFER_SIZE = 1024 * 1024;
+    // chars appended to the buffer at a time
+    private static final int CHAR_BUFFER_SIZE = 256 * 1024;
+
+    private final Path _path;
+    private final Charset _charset;
+    private String _lineSeparator = "\n";
+    private volatile boolean _cancelled;
+
+    public TextFileLoader(Path path, Charset charset) {
+        _path = path;
+        _charset = charset;
+    }
+
+    /**
+     * Appends the decoded file to buffer.
+     *
+     * @param listener Notified with the bytes read so far, may be null
+     */
+    public void load(GapBuffer buffer, OnProgressListener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            CharsetDecoder decoder = _charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            long expected = (long) (size * decoder.averageCharsPerByte());
+            buffer.ensureCapacity(buffer.length() + (int) Math.min(expected, Integer.MAX_VALUE - 8));
+
+            ByteBuffer in = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+            CharBuffer out = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+            char[] chars = out.array();
+            boolean separatorFound = false;
+            char last = 0;
+            long read = 0;
+
+            boolean endOfInput = false;
+            while (!endOfInput && !_cancelled) {
+                int count = channel.read(in);
+                if (count < 0) {
+                    endOfInput = true;
+                } else {
+                    read += count;
+                }
+
+                in.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(in, out, endOfInput);
+                    if (endOfInput && result.isUnderflow()) {
+                        decoder.flush(out);
+                    }
+
+                    int length = out.position();
+                    if (!separatorFound) {
+                        for (int i = 0; i < length; ++i) {
+                            if (chars[i] == '\n') {
+                                char previous = i > 0 ? chars[i - 1] : last;
+                                _lineSeparator = previous == '\r' ? "\r\n" : "\n";
+                                separatorFound = true;
+                                break;
+                            }
+                        }
+                        if (length > 0) {
+                            last = chars[length - 1];
+                        }
+                    }
+
+                    buffer.append(chars, 0, length);
+                    out.clear();
+                } while (result.isOverflow());
+                in.compact();
+
+                if (listener != null) {
+                    listener.onProgress(read, size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops a load running on another thread
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    /**
+     * @return "\r\n" if the first line of the file ends with it, otherwise "\n"
+     */
+    public String getLineSeparator() {
+        return _lineSeparator;
+    }
+}
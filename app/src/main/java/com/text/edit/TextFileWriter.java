@@ -0,0 +1,159 @@
+package com.text.edit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves a TextStorage to a file without building a String of the text.
+ *
+ * The storage hands its text over in chunks through write(), straight
+ * from its own arrays. Each chunk is encoded into a reused byte buffer
+ * which is written to the channel whenever it fills up, so saving only
+ * needs O(chunk) extra memory.
+ *
+ * The text goes to a temp file next to the target, which then replaces
+ * the target in one rename, so a failed save leaves the old file intact.
+ */
+public class TextFileWriter {
+
+    // bytes written at a time
+    private static final int BYTE_BUFFER_SIZE = 1024 * 1024;
+
+    private final Path _path;
+    private final Charset _charset;
+
+    private FileChannel _channel;
+    private CharsetEncoder _encoder;
+    private ByteBuffer _out;
+
+    // a high surrogate held back until the next chunk
+    private final char[] _pair = new char[2];
+    private boolean _carry;
+
+    private OnProgressListener _listener;
+    private long _written;
+    private long _total;
+
+    public TextFileWriter(Path path, Charset charset) {
+        _path = path;
+        _charset = charset;
+    }
+
+    /**
+     * Writes the text of storage to the file.
+     *
+     * @param listener Notified with the chars written so far, may be null
+     */
+    public void save(TextStorage storage, OnProgressListener listener) throws IOException {
+        Path parent = _path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, "." + _path.getFileName(), ".tmp");
+        copyPermissions(temp);
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                _channel = channel;
+                _encoder = _charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                _out = ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+                _carry = false;
+                _listener = listener;
+                _written = 0;
+                _total = storage.length();
+
+                storage.writeTo(this);
+                finish();
+                channel.force(true);
+            } finally {
+                _channel = null;
+                _out = null;
+                _listener = null;
+            }
+
+            try {
+                Files.move(temp, _path, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, _path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    // temp files are created private, keep the mode of the replaced file
+    private void copyPermissions(Path temp) {
+        try {
+            if (Files.exists(_path)) {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(_path));
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Encodes the count chars of chars, starting from start, as the next
+     * part of the text. Called by TextStorage.writeTo().
+     */
+    public void write(char[] chars, int start, int count) throws IOException {
+        int end = start + count;
+
+        if (_carry && start < end) {
+            // join the held back high surrogate with the first char
+            _pair[1] = chars[start];
+            CharBuffer in = CharBuffer.wrap(_pair);
+            encode(in, false);
+            _carry = false;
+            start += in.position() - 1;
+        }
+
+        CharBuffer in = CharBuffer.wrap(chars, start, end - start);
+        encode(in, false);
+        if (in.hasRemaining()) {
+            // a high surrogate whose low half is in the next chunk
+            _pair[0] = in.get();
+            _carry = true;
+        }
+
+        _written += count;
+        if (_listener != null) {
+            _listener.onProgress(_written, _total);
+        }
+    }
+
+    private void finish() throws IOException {
+        encode(CharBuffer.wrap(_pair, 0, _carry ? 1 : 0), true);
+        _carry = false;
+        while (_encoder.flush(_out).isOverflow()) {
+            drain();
+        }
+        drain();
+    }
+
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (_encoder.encode(in, _out, endOfInput).isOverflow()) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        _out.flip();
+        while (_out.hasRemaining()) {
+            _channel.write(_out);
+        }
+        _out.clear();
+    }
+}
@@ -0,0 +1,21 @@
+package com.text.edit;
+
+/**
+ * Work on a snapshot of a TextStorage that a JobScheduler runs off the
+ * UI thread, such as lexing or measuring a range of lines
+ */
+public interface TextJob {
+
+    /**
+     * Does the work on text, a snapshot of storage
+     *
+     * @param storage Checked for edits, which make the results stale
+     * @return false if the job was cancelled or became stale
+     */
+    boolean run(TextStorage storage, TextSnapshot text);
+
+    /**
+     * Stops run() at its next check, on any thread
+     */
+    void cancel();
+}
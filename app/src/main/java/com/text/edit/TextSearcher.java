@@ -0,0 +1,259 @@
+package com.text.edit;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the matches of a pattern on a worker thread.
+ *
+ * The search runs over a snapshot of the text, so it neither blocks the
+ * editor nor copies the text. It starts at the offset given, usually the
+ * first visible line, so the matches on screen come first, and then wraps
+ * around to the start of the text. Matches are handed over in batches.
+ *
+ * Starting a new search cancels the running one, and a search stops by
+ * itself once the text is edited, since its offsets would be stale.
+ *
+ * Plain strings are found with a LiteralSearch over the raw text of the
+ * snapshot, in chunks of SEARCH_CHUNK chars.
+ */
+public class TextSearcher {
+
+    // matches handed over at a time
+    private static final int BATCH_SIZE = 512;
+    // chars read between two checks for cancellation
+    private static final int CHECK_INTERVAL = 64 * 1024;
+    // chars searched at a time by a literal search
+    private static final int SEARCH_CHUNK = 1024 * 1024;
+
+    private volatile int _search;
+
+    /**
+     * Starts searching the text of storage for pattern.
+     *
+     * @param from The offset to search from before wrapping around
+     * @return The id of the search, passed to the listener
+     */
+    public int search(TextStorage storage, Pattern pattern, int from, 
+                      OnSearchListener listener) {
+        return start(storage, from, listener, pattern, null);
+    }
+
+    /**
+     * Starts searching the text of storage for a plain string
+     *
+     * @param from The offset to search from before wrapping around
+     * @return The id of the search, passed to the listener
+     */
+    public int search(TextStorage storage, LiteralSearch literal, int from, 
+                      OnSearchListener listener) {
+        return start(storage, from, listener, null, literal);
+    }
+
+    private synchronized int start(TextStorage storage, int from, OnSearchListener listener,
+                                   Pattern pattern, LiteralSearch literal) {
+        final int search = ++_search;
+        final TextSnapshot snapshot = storage.snapshot();
+        final int start = Math.max(0, Math.min(from, snapshot.length()));
+
+        Thread worker = new Thread(() -> {
+            try {
+                Search task = new Search(search, storage, snapshot, listener);
+                if (literal != null) {
+                    task.run(literal, start);
+                } else {
+                    task.run(pattern, start);
+                }
+            } catch (CancelledException e) {
+                // replaced by a newer search or the text was edited
+            } finally {
+                snapshot.release();
+            }
+        }, "TextSearcher");
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        return search;
+    }
+
+    /**
+     * Adds the start and end offsets of the matches of pattern starting in
+     * [from, to) of text to result, on the calling thread. Used to re-find
+     * in a small edited range.
+     */
+    public static void find(CharSequence text, Pattern pattern, int from, int to, IntList result) {
+        Matcher matcher = pattern.matcher(text);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        matcher.region(from, text.length());
+        while (matcher.find() && matcher.start() < to) {
+            result.add(matcher.start());
+            result.add(matcher.end());
+        }
+    }
+
+    /**
+     * Stops the running search, its pending results are not delivered
+     */
+    public synchronized void cancel() {
+        ++_search;
+    }
+
+    private static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * The text seen by the matcher, checking for cancellation while it
+     * is read since a single find() may scan the whole text
+     */
+    private class Search implements CharSequence {
+        private final int _id;
+        private final TextStorage _storage;
+        private final TextSnapshot _snapshot;
+        private final OnSearchListener _listener;
+        private int _reads;
+
+        private int[] _starts = new int[BATCH_SIZE];
+        private int[] _ends = new int[BATCH_SIZE];
+        private int _count;
+        // the matches before the start are merged into the middle of the
+        // results, fewer and larger batches keep that cheap
+        private boolean _wrapped;
+        private int _total;
+
+        Search(int id, TextStorage storage, TextSnapshot snapshot, OnSearchListener listener) {
+            _id = id;
+            _storage = storage;
+            _snapshot = snapshot;
+            _listener = listener;
+        }
+
+        void run(Pattern pattern, int from) {
+            int length = _snapshot.length();
+            Matcher matcher = pattern.matcher(this);
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+
+            // from the visible text to the end
+            matcher.region(from, length);
+            int firstStart = length + 1;
+            while (matcher.find()) {
+                if (firstStart > length) {
+                    firstStart = matcher.start();
+                }
+                add(matcher.start(), matcher.end());
+            }
+            flush();
+            _wrapped = true;
+
+            // then from the start up to the visible text. A match running
+            // into the first one already found is dropped.
+            matcher.region(0, length);
+            while (matcher.find() && matcher.start() < from) {
+                if (matcher.end() > firstStart) {
+                    break;
+                }
+                add(matcher.start(), matcher.end());
+            }
+            flush();
+
+            _listener.onProgress(_id, _total, true);
+        }
+
+        void run(LiteralSearch literal, int from) {
+            int length = _snapshot.length();
+            IntList found = new IntList(BATCH_SIZE);
+
+            // from the visible text to the end
+            int next = from;
+            int firstStart = length + 1;
+            while (next < length) {
+                found.clear();
+                next = _snapshot.find(literal, next, Math.min(length, next + SEARCH_CHUNK), found);
+                if (firstStart > length && !found.isEmpty()) {
+                    firstStart = found.get(0);
+                }
+                for (int i = 0; i < found.size(); i += 2) {
+                    add(found.get(i), found.get(i + 1));
+                }
+                checkCancelled();
+            }
+            flush();
+            _wrapped = true;
+
+            // then from the start up to the visible text
+            next = 0;
+            while (next < from) {
+                found.clear();
+                next = _snapshot.find(literal, next, Math.min(from, next + SEARCH_CHUNK), found);
+                for (int i = 0; i < found.size(); i += 2) {
+                    if (found.get(i + 1) > firstStart) {
+                        // runs into the first match already found
+                        next = from;
+                        break;
+                    }
+                    add(found.get(i), found.get(i + 1));
+                }
+                checkCancelled();
+            }
+            flush();
+
+            _listener.onProgress(_id, _total, true);
+        }
+
+        private void add(int start, int end) {
+            _starts[_count] = start;
+            _ends[_count] = end;
+            if (++_count == _starts.length) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            checkCancelled();
+            if (_count > 0) {
+                _total += _count;
+                _listener.onMatches(_id, _starts, _ends, _count);
+                _listener.onProgress(_id, _total, false);
+                int size = _wrapped ? _starts.length * 2 : BATCH_SIZE;
+                _starts = new int[size];
+                _ends = new int[size];
+                _count = 0;
+            }
+        }
+
+        private void checkCancelled() {
+            if (_id != _search || _storage.getVersion() != _snapshot.getVersion()) {
+                throw new CancelledException();
+            }
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++_reads == CHECK_INTERVAL) {
+                _reads = 0;
+                checkCancelled();
+            }
+            return _snapshot.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return _snapshot.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return _snapshot.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return _snapshot.toString();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.text.edit;
+
+/**
+ * An immutable view of the text of a TextStorage at one version.
+ *
+ * A snapshot can be read from any thread without locking while the
+ * storage keeps being edited. Work done on it should be tagged with
+ * getVersion(), so results can be dropped once the storage has moved on.
+ * Call release() when done, so the storage can stop protecting the
+ * text the snapshot shares with it.
+ */
+public interface TextSnapshot extends CharSequence {
+
+    /**
+     * @return The version of the storage the snapshot was taken at
+     */
+    long getVersion();
+
+    /**
+     * Copies the chars [start, end) to dst
+     */
+    void getChars(int start, int end, char[] dst, int dstBegin);
+
+    /**
+     * Adds the start and end offsets of the matches of search starting
+     * in [from, to) to result
+     *
+     * @return The offset to continue searching from
+     */
+    default int find(LiteralSearch search, int from, int to, IntList result) {
+        return search.find(this, from, to, result);
+    }
+
+    void release();
+}
@@ -0,0 +1,98 @@
+package com.text.edit;
+
+import java.io.IOException;
+
+/**
+ * The text model behind HighlightTextView.
+ *
+ * Line numbers are 1-based, char offsets are 0-based. Edits made with
+ * capture set to true are recorded for undo/redo.
+ */
+public interface TextStorage extends CharSequence {
+
+    String getLine(int lineNumber);
+
+    int getLineOffset(int lineNumber);
+
+    int getLineLength(int lineNumber);
+
+    int findLineNumber(int charOffset);
+
+    int getLineCount();
+
+    String substring(int start, int end);
+
+    /**
+     * Copies the chars [start, end) to dst in one call, so drawing and
+     * lexing can reuse a buffer instead of building a String per line
+     *
+     * @return The version of the text the chars were copied from
+     */
+    long getChars(int start, int end, char[] dst, int dstBegin);
+
+    TextStorage insert(int offset, String str, boolean capture);
+
+    TextStorage delete(int start, int end, boolean capture);
+
+    TextStorage replace(int start, int end, String str, boolean capture);
+
+    /**
+     * Replaces the count sorted, non-overlapping ranges [starts[i], ends[i])
+     * with str as a single edit
+     */
+    TextStorage replaceAll(int[] starts, int[] ends, int count, String str, boolean capture);
+
+    TextStorage append(String str);
+
+    /**
+     * Adds a listener told about every change of the text
+     */
+    void addOnEditListener(OnEditListener listener);
+
+    void removeOnEditListener(OnEditListener listener);
+
+    /**
+     * @return A number that changes with every edit of the text
+     */
+    long getVersion();
+
+    /**
+     * Takes an immutable view of the current text that background work
+     * can read without locking and without copying the whole text
+     */
+    TextSnapshot snapshot();
+
+    /**
+     * Makes lines a copy of the line index of the text, so a view that
+     * tracks the lines itself starts without reading the whole text.
+     * Only storages that are edited keep a full line index.
+     */
+    void copyLines(LineIndex lines);
+
+    /**
+     * Hands the text to writer in chunks, without copying it to a String
+     */
+    void writeTo(TextFileWriter writer) throws IOException;
+
+    boolean canUndo();
+
+    boolean canRedo();
+
+    /**
+     * @return The suggested position of the caret after the undo, or -1 if
+     *          there is nothing to undo
+     */
+    int undo();
+
+    /**
+     * @return The suggested position of the caret after the redo, or -1 if
+     *          there is nothing to redo
+     */
+    int redo();
+
+    void beginBatchEdit();
+
+    void endBatchEdit();
+
+    boolean isBatchEdit();
+}
@@ -0,0 +1,36 @@
+package com.text.edit;
+
+/**
+ * Splits the lines of a text into colored tokens for a SyntaxHighlighter.
+ *
+ * The text is tokenized line by line. The state returned at the end of a
+ * line, such as being inside a block comment, is passed in for the next
+ * line, so tokenize() must only depend on the chars and the state. This
+ * lets the highlighter stop re-lexing after an edit once a line ends in
+ * the same state as before. Lines are tokenized on a worker thread, so
+ * a tokenizer must not keep state of its own.
+ */
+public interface Tokenizer {
+
+    // token types, also indices of the colors of the view
+    int NORMAL = 0;
+    int KEYWORD = 1;
+    int TYPE = 2;
+    int STRING = 3;
+    int NUMBER = 4;
+    int COMMENT = 5;
+    int TOKEN_TYPES = 6;
+
+    // the state at the start of the text
+    int INITIAL_STATE = 0;
+
+    /**
+     * Adds the tokens of the line chars [start, end), without its line
+     * break, to spans as (offset from start, token type) pairs. A token
+     * runs to the offset of the next one, the first one starts at 0.
+     *
+     * @param state The state at the end of the previous line
+     * @return The state at the end of the line
+     */
+    int tokenize(char[] chars, int start, int end, int state, IntList spans);
+}